@@ -0,0 +1,101 @@
+package benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import persistence.ColumnarQuery;
+import persistence.ColumnarResult;
+
+/*
+ * Reads (country, age, id) for 10000 customers and sums the ages, from the
+ * List<Object[]> of getResultList() and from a ColumnarResult, plus the
+ * country report of MainJPQL both ways. Run with -prof gc to compare the
+ * bytes allocated per operation (gc.alloc.rate.norm) and the GC counts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ColumnarQueryBenchmark {
+	private static final ColumnarQuery ROWS = new ColumnarQuery(
+			"SELECT a.country, c.age, c.id FROM customer c JOIN address a ON a.id = c.address_fk",
+			ColumnarResult.Type.DICTIONARY, ColumnarResult.Type.INT, ColumnarResult.Type.LONG);
+	private static final ColumnarQuery COUNTRY_REPORT = new ColumnarQuery(
+			"SELECT a.country, COUNT(*) FROM customer c JOIN address a ON a.id = c.address_fk GROUP BY a.country",
+			ColumnarResult.Type.DICTIONARY, ColumnarResult.Type.LONG);
+
+	private EntityManagerFactory emf;
+	private EntityManager em;
+
+	@Setup
+	public void setUp() {
+		emf = H2Database.open("chapter06PU", "columnar");
+		H2Database.loadCustomers(emf, 10000);
+	}
+
+	@TearDown
+	public void tearDown() {
+		emf.close();
+	}
+
+	@Setup(Level.Iteration)
+	public void open() {
+		em = emf.createEntityManager();
+	}
+
+	@TearDown(Level.Iteration)
+	public void close() {
+		em.close();
+	}
+
+	@Benchmark
+	public long rowsAsObjectArrays() {
+		List<Object[]> rows = em.createQuery("SELECT c.address.country, c.age, c.id FROM Customer c", Object[].class)
+				.getResultList();
+		long sum = 0;
+		for (Object[] row : rows) {
+			sum += (Integer) row[1];
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public long rowsAsColumns() {
+		ColumnarResult rows = ROWS.getResult(em);
+		int[] ages = rows.getInts(1);
+		long sum = 0;
+		for (int row = 0; row < rows.getRowCount(); row++) {
+			sum += ages[row];
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public List<Object[]> countryReportAsObjectArrays() {
+		return em.createQuery("SELECT c.address.country, count(c) FROM Customer c GROUP BY c.address.country",
+				Object[].class).getResultList();
+	}
+
+	@Benchmark
+	public ColumnarResult countryReportAsColumns() {
+		return COUNTRY_REPORT.getResult(em);
+	}
+}
@@ -0,0 +1,90 @@
+package benchmark;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import model.Customer;
+import persistence.Chapter06Customizer;
+
+/*
+ * Commits a transaction that changed 100 of the customers held by the
+ * persistence context, for a growing number of them. With ATTRIBUTE change
+ * tracking (chapter06.change-tracking), the commit only looks at the 100
+ * customers that recorded a change, and should take about as long whatever
+ * the number held; with DEFERRED, it compares every customer with its backup
+ * copy. The customers are read before each measurement, which is a single
+ * commit.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+@State(Scope.Benchmark)
+public class CommitBenchmark {
+	private static final int CHANGED = 100;
+
+	@Param({ "1000", "10000", "100000" })
+	private int managed;
+
+	@Param({ "ATTRIBUTE", "DEFERRED" })
+	private String changeTracking;
+
+	private EntityManagerFactory emf;
+	private EntityManager em;
+	private List<Customer> customers;
+	private int iteration;
+
+	@Setup
+	public void setUp() {
+		Map<String, Object> properties = new HashMap<>();
+		properties.put(Chapter06Customizer.CHANGE_TRACKING + ".Customer", changeTracking);
+		emf = H2Database.open("chapter06PU", "commit", properties);
+		H2Database.loadCustomers(emf, managed);
+	}
+
+	@TearDown
+	public void tearDown() {
+		emf.close();
+	}
+
+	@Setup(Level.Iteration)
+	public void read() {
+		em = emf.createEntityManager();
+		em.getTransaction().begin();
+		customers = em.createQuery("SELECT c FROM Customer c", Customer.class).getResultList();
+		iteration++;
+	}
+
+	@TearDown(Level.Iteration)
+	public void close() {
+		em.close();
+	}
+
+	@Benchmark
+	public void commit() {
+		for (int i = 0; i < CHANGED; i++) {
+			customers.get(i * (managed / CHANGED)).setAge(iteration);
+		}
+		em.getTransaction().commit();
+	}
+}
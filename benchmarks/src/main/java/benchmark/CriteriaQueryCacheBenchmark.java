@@ -0,0 +1,120 @@
+package benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import model.Customer;
+import model.Customer_;
+import persistence.CriteriaQueryCache;
+
+/*
+ * Builds and runs the criteria query of MainJPQL (first name and minimum
+ * age) with different literals every time, through em.createQuery() and
+ * through the CriteriaQueryCache. The hits and misses of the cache are
+ * reported next to the time of cachedQuery; the hit rate is
+ * hits / (hits + misses).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CriteriaQueryCacheBenchmark {
+	private EntityManagerFactory emf;
+	private CriteriaQueryCache cache;
+
+	@State(Scope.Thread)
+	public static class Session {
+		private EntityManager em;
+		private int next;
+
+		@Setup(Level.Iteration)
+		public void open(CriteriaQueryCacheBenchmark benchmark) {
+			em = benchmark.emf.createEntityManager();
+		}
+
+		@TearDown(Level.Iteration)
+		public void close() {
+			em.close();
+		}
+
+		private CriteriaQuery<Customer> nextQuery() {
+			int i = next++;
+			CriteriaBuilder builder = em.getCriteriaBuilder();
+			CriteriaQuery<Customer> criteriaQuery = builder.createQuery(Customer.class);
+			Root<Customer> c = criteriaQuery.from(Customer.class);
+			return criteriaQuery.select(c).where(builder.and(
+					builder.equal(c.get(Customer_.firstName), "Name" + i % 50),
+					builder.gt(c.get(Customer_.age), i % 100)));
+		}
+	}
+
+	// Counted per iteration, over all the threads
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class CacheOutcomes {
+		public long hits;
+		public long misses;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			hits = 0;
+			misses = 0;
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		emf = H2Database.open("chapter06PU", "criteria");
+		H2Database.loadCustomers(emf, 1000);
+		cache = new CriteriaQueryCache(emf);
+	}
+
+	@TearDown
+	public void tearDown() {
+		emf.close();
+	}
+
+	@Benchmark
+	public List<Customer> createQuery(Session session) {
+		List<Customer> customers = session.em.createQuery(session.nextQuery()).getResultList();
+		session.em.clear();
+		return customers;
+	}
+
+	@Benchmark
+	public List<Customer> cachedQuery(Session session, CacheOutcomes outcomes) {
+		long misses = cache.getMisses();
+		List<Customer> customers = cache.createQuery(session.em, session.nextQuery()).getResultList();
+		// Exact with a single thread, as run by default; with more (-t), a hit
+		// is counted as a miss when another thread misses at the same time
+		if (cache.getMisses() == misses) {
+			outcomes.hits++;
+		} else {
+			outcomes.misses++;
+		}
+		session.em.clear();
+		return customers;
+	}
+}
@@ -0,0 +1,92 @@
+package benchmark;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import persistence.CustomerBulkLoader;
+
+/*
+ * Loads 1,000,000 customers, with their addresses, through the
+ * CustomerBulkLoader, chunkSize at a time. Every iteration is one load into
+ * a new schema, and the score is in customers per second. The peak heap of
+ * the load is reported next to it, in MB: the sum of the peaks of the heap
+ * pools, so an upper bound of the peak of the whole heap. The database is an
+ * H2 file rather than an in-memory one, so that the heap holds what the
+ * loader keeps, not the rows loaded.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(CustomerBulkLoaderBenchmark.CUSTOMERS)
+@Warmup(iterations = 1, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx1g")
+@State(Scope.Benchmark)
+public class CustomerBulkLoaderBenchmark {
+	static final int CUSTOMERS = 1_000_000;
+
+	@Param({ "100", "1000", "10000" })
+	private int chunkSize;
+
+	private EntityManagerFactory emf;
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Heap {
+		public long peakMegabytes;
+	}
+
+	@Setup(Level.Iteration)
+	public void setUp() {
+		Map<String, Object> properties = new HashMap<>();
+		properties.put("javax.persistence.jdbc.url",
+				"jdbc:h2:file:" + new File(System.getProperty("java.io.tmpdir"), "bulk-load").getAbsolutePath());
+		emf = H2Database.open("chapter06PU", "bulk-load", properties);
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		emf.close();
+	}
+
+	@Benchmark
+	public long load(Heap heap) {
+		long loaded = new CustomerBulkLoader(emf, chunkSize).load(H2Database.customers(CUSTOMERS));
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		heap.peakMegabytes = peak / (1024 * 1024);
+		return loaded;
+	}
+}
@@ -0,0 +1,105 @@
+package benchmark;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.CacheRetrieveMode;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import model.Address;
+import model.Customer;
+
+/*
+ * Persists a Customer with its Address in a transaction of its own, and
+ * finds a customer by id, from the second-level cache as in Main and, with
+ * the cache bypassed, from the database. The persistence context is cleared
+ * after each find, so that it is not answered by the first-level cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EntityManagerBenchmark {
+	private static final Map<String, Object> BYPASS_CACHE = Collections
+			.singletonMap("javax.persistence.cache.retrieveMode", CacheRetrieveMode.BYPASS);
+
+	private EntityManagerFactory emf;
+	private List<Long> ids;
+
+	@State(Scope.Thread)
+	public static class Session {
+		private EntityManager em;
+		private int next;
+
+		@Setup(Level.Iteration)
+		public void open(EntityManagerBenchmark benchmark) {
+			em = benchmark.emf.createEntityManager();
+		}
+
+		@TearDown(Level.Iteration)
+		public void close() {
+			em.close();
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		emf = H2Database.open("chapter06PU", "entity-manager");
+		H2Database.loadCustomers(emf, 10000);
+		EntityManager em = emf.createEntityManager();
+		ids = em.createQuery("SELECT c.id FROM Customer c", Long.class).getResultList();
+		em.close();
+	}
+
+	@TearDown
+	public void tearDown() {
+		emf.close();
+	}
+
+	@Benchmark
+	public Customer persist(Session session) {
+		int i = session.next++;
+		Customer customer = new Customer("Name" + i % 50, "Surname" + i, "customer" + i + "@mail.com", i % 100,
+				i % 2 == 0 ? "M" : "F");
+		customer.setAddress(new Address("Street " + i, "City", "Zip", "UK"));
+		EntityTransaction tx = session.em.getTransaction();
+		tx.begin();
+		session.em.persist(customer);
+		tx.commit();
+		session.em.clear();
+		return customer;
+	}
+
+	@Benchmark
+	public Customer findCached(Session session) {
+		Customer customer = session.em.find(Customer.class, ids.get(session.next++ % ids.size()));
+		session.em.clear();
+		return customer;
+	}
+
+	@Benchmark
+	public Customer findUncached(Session session) {
+		Customer customer = session.em.find(Customer.class, ids.get(session.next++ % ids.size()), BYPASS_CACHE);
+		session.em.clear();
+		return customer;
+	}
+}
@@ -0,0 +1,56 @@
+package benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import model.Address;
+import model.Customer;
+import persistence.CustomerBulkLoader;
+
+/*
+ * Opens the persistence units of chapter06 on a private in-memory H2
+ * database instead of MySQL, with the SQL logging turned off.
+ */
+public class H2Database {
+	private H2Database() {
+	}
+
+	public static EntityManagerFactory open(String persistenceUnitName, String databaseName) {
+		return open(persistenceUnitName, databaseName, new HashMap<>());
+	}
+
+	// The given properties are modified, and override those of the unit; a URL
+	// given in them, e.g. that of an H2 file, replaces the in-memory database
+	public static EntityManagerFactory open(String persistenceUnitName, String databaseName,
+			Map<String, Object> properties) {
+		properties.put("javax.persistence.jdbc.driver", "org.h2.Driver");
+		properties.putIfAbsent("javax.persistence.jdbc.url", "jdbc:h2:mem:" + databaseName + ";DB_CLOSE_DELAY=-1");
+		properties.put("javax.persistence.jdbc.user", "sa");
+		properties.put("javax.persistence.jdbc.password", "");
+		properties.put("javax.persistence.schema-generation.database.action", "drop-and-create");
+		properties.put("javax.persistence.schema-generation.scripts.action", "none");
+		properties.put("eclipselink.ddl-generation.table-creation-suffix", "");
+		properties.put("eclipselink.logging.level", "WARNING");
+		properties.put("eclipselink.logging.level.sql", "WARNING");
+		return Persistence.createEntityManagerFactory(persistenceUnitName, properties);
+	}
+
+	public static void loadCustomers(EntityManagerFactory emf, int count) {
+		new CustomerBulkLoader(emf).load(customers(count));
+	}
+
+	// Customers named Name0 to Name49, aged 0 to 99, half of them in the UK
+	public static Stream<Customer> customers(int count) {
+		return IntStream.range(0, count).mapToObj(i -> {
+			Customer customer = new Customer("Name" + i % 50, "Surname" + i, "customer" + i + "@mail.com", i % 100,
+					i % 2 == 0 ? "M" : "F");
+			customer.setAddress(new Address("Street " + i, "City", "Zip", i % 2 == 0 ? "UK" : "NL"));
+			return customer;
+		});
+	}
+}
@@ -0,0 +1,88 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import model.Book;
+import persistence.DetachedUpdates;
+
+/*
+ * Writes back a detached Book whose price changed, in a transaction of its
+ * own, as a request/response workflow would: with em.merge, which reads the
+ * Book first (Book is not in the shared cache) and then updates it, and with
+ * DetachedUpdates, which only updates it. Each thread has a Book of its own,
+ * so that there are no version conflicts.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MergeBenchmark {
+	private EntityManagerFactory emf;
+	private DetachedUpdates<Book> updates;
+
+	@State(Scope.Thread)
+	public static class Detached {
+		private Book book;
+
+		@Setup
+		public void persist(MergeBenchmark benchmark) {
+			EntityManager em = benchmark.emf.createEntityManager();
+			EntityTransaction tx = em.getTransaction();
+			tx.begin();
+			book = new Book("Book", 10f, "Description", "ISBN", 100, false);
+			em.persist(book);
+			tx.commit();
+			// Detached by the commit, eclipselink.persistence-context.close-on-commit
+			em.close();
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		emf = H2Database.open("chapter06PU", "merge");
+		updates = new DetachedUpdates<>(emf, Book.class);
+	}
+
+	@TearDown
+	public void tearDown() {
+		emf.close();
+	}
+
+	@Benchmark
+	public Book merge(Detached detached) {
+		detached.book.increasePrice(1f);
+		EntityManager em = emf.createEntityManager();
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		// The copy merged into holds the new version once committed
+		detached.book = em.merge(detached.book);
+		tx.commit();
+		em.close();
+		return detached.book;
+	}
+
+	@Benchmark
+	public Book detachedUpdate(Detached detached) {
+		detached.book.increasePrice(1f);
+		updates.update(detached.book);
+		return detached.book;
+	}
+}
@@ -0,0 +1,157 @@
+package benchmark;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.RollbackException;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import model.Book;
+import persistence.Chapter06Customizer;
+import persistence.OptimisticRetryExecutor;
+
+/*
+ * 2, 8 or 32 threads increase the price of one of a few Book rows, as the
+ * BookPriceModifier of Main does: once per operation, counting the commits
+ * that failed on the @Version check, and through the OptimisticRetryExecutor,
+ * which retries them after a random backoff. The fewer the books and the
+ * more the threads, the more the conflicts. JMH sets the threads per method,
+ * hence a method per thread count; the pool is sized for all the threads, so
+ * that they never wait for a connection.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OptimisticUpdateBenchmark {
+	@Param({ "1", "16" })
+	private int books;
+
+	private EntityManagerFactory emf;
+	private OptimisticRetryExecutor executor;
+	private List<Long> ids;
+
+	// Reported next to the throughput, per second
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Outcomes {
+		public long commits;
+		public long conflicts;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			commits = 0;
+			conflicts = 0;
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		Map<String, Object> properties = new HashMap<>();
+		properties.put(Chapter06Customizer.POOL_MAX_SIZE, "40");
+		emf = H2Database.open("chapter06PU", "optimistic", properties);
+		executor = new OptimisticRetryExecutor(emf);
+		EntityManager em = emf.createEntityManager();
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		for (int i = 0; i < books; i++) {
+			em.persist(new Book("Book " + i, 10f, "Description", "ISBN-" + i, 100, false));
+		}
+		tx.commit();
+		ids = em.createQuery("SELECT b.id FROM Book b", Long.class).getResultList();
+		em.close();
+	}
+
+	@TearDown
+	public void tearDown() {
+		emf.close();
+	}
+
+	private long nextId() {
+		return ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+	}
+
+	@Benchmark
+	@Threads(2)
+	public void singleAttempt2(Outcomes outcomes) {
+		singleAttempt(outcomes);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public void singleAttempt8(Outcomes outcomes) {
+		singleAttempt(outcomes);
+	}
+
+	@Benchmark
+	@Threads(32)
+	public void singleAttempt32(Outcomes outcomes) {
+		singleAttempt(outcomes);
+	}
+
+	@Benchmark
+	@Threads(2)
+	public void retried2(Outcomes outcomes) {
+		retried(outcomes);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public void retried8(Outcomes outcomes) {
+		retried(outcomes);
+	}
+
+	@Benchmark
+	@Threads(32)
+	public void retried32(Outcomes outcomes) {
+		retried(outcomes);
+	}
+
+	private void singleAttempt(Outcomes outcomes) {
+		EntityManager em = emf.createEntityManager();
+		EntityTransaction tx = em.getTransaction();
+		try {
+			tx.begin();
+			em.find(Book.class, nextId()).increasePrice(1f);
+			tx.commit();
+			outcomes.commits++;
+		} catch (RollbackException | OptimisticLockException e) {
+			outcomes.conflicts++;
+		} finally {
+			if (tx.isActive()) {
+				tx.rollback();
+			}
+			em.close();
+		}
+	}
+
+	private void retried(Outcomes outcomes) {
+		long id = nextId();
+		executor.run(em -> em.find(Book.class, id).increasePrice(1f));
+		outcomes.commits++;
+	}
+}
@@ -0,0 +1,91 @@
+package benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import model.Customer;
+import persistence.KeysetPaginator;
+
+/*
+ * Reads a page of 20 customers out of 10000, starting at a given row, with
+ * setFirstResult(offset) and with the KeysetPaginator that MainJPQL uses
+ * instead. The offset page gets slower with the depth of the page, the
+ * keyset page should not.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PaginationBenchmark {
+	private static final int PAGE_SIZE = 20;
+
+	@Param({ "0", "1000", "9000" })
+	private int offset;
+
+	private EntityManagerFactory emf;
+	private EntityManager em;
+	// The continuation token of the page starting at offset
+	private String token;
+
+	@Setup
+	public void setUp() {
+		emf = H2Database.open("chapter06PU", "pagination");
+		H2Database.loadCustomers(emf, 10000);
+		if (offset > 0) {
+			EntityManager em = emf.createEntityManager();
+			token = new KeysetPaginator<>(em, Customer.class, offset).page(null).getNextToken();
+			em.close();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		emf.close();
+	}
+
+	@Setup(Level.Iteration)
+	public void open() {
+		em = emf.createEntityManager();
+	}
+
+	@TearDown(Level.Iteration)
+	public void close() {
+		em.close();
+	}
+
+	@Benchmark
+	public List<Customer> offsetPage() {
+		List<Customer> customers = em.createQuery("SELECT c FROM Customer c ORDER BY c.id", Customer.class)
+				.setFirstResult(offset)
+				.setMaxResults(PAGE_SIZE)
+				.getResultList();
+		em.clear();
+		return customers;
+	}
+
+	@Benchmark
+	public List<Customer> keysetPage() {
+		List<Customer> customers = new KeysetPaginator<>(em, Customer.class, PAGE_SIZE).page(token).getContent();
+		em.clear();
+		return customers;
+	}
+}
@@ -0,0 +1,99 @@
+package benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import model.Book;
+import persistence.Chapter06Customizer;
+
+/*
+ * Persists 10 Books per transaction, from 1, 8 and 32 threads at once (one
+ * benchmark method per thread count, as JMH sets the threads per method).
+ * With the POOLED generator, the ids are handed out by the PooledSequence of
+ * BOOK_SEQ: with a block size of 1, every id takes an UPDATE of the SEQUENCE
+ * row, committed on a connection of its own, and the threads queue on that
+ * row; with larger blocks, an id is an increment, and the next block is
+ * reserved in the background. TABLE is the generator it replaced, the
+ * SEQ_GEN row shared by every entity and updated in the transaction of the
+ * insert, block size ids at a time. The pool is sized for all the threads,
+ * so that they never wait for a connection.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PooledSequenceBenchmark {
+	private static final int BOOKS_PER_TRANSACTION = 10;
+
+	@Param({ "POOLED", "TABLE" })
+	private String generator;
+
+	@Param({ "1", "50", "1000" })
+	private int blockSize;
+
+	private EntityManagerFactory emf;
+
+	@Setup
+	public void setUp() {
+		Map<String, Object> properties = new HashMap<>();
+		properties.put(Chapter06Customizer.SEQUENCE_GENERATOR, generator);
+		properties.put(Chapter06Customizer.SEQUENCE_BLOCK_SIZE, String.valueOf(blockSize));
+		properties.put(Chapter06Customizer.POOL_MAX_SIZE, "40");
+		emf = H2Database.open("chapter06PU", "sequence", properties);
+	}
+
+	@TearDown
+	public void tearDown() {
+		emf.close();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void threads1() {
+		persist();
+	}
+
+	@Benchmark
+	@Threads(8)
+	public void threads8() {
+		persist();
+	}
+
+	@Benchmark
+	@Threads(32)
+	public void threads32() {
+		persist();
+	}
+
+	private void persist() {
+		EntityManager em = emf.createEntityManager();
+		EntityTransaction tx = em.getTransaction();
+		tx.begin();
+		for (int i = 0; i < BOOKS_PER_TRANSACTION; i++) {
+			em.persist(new Book("Book", 10f, "Description", "ISBN", 100, false));
+		}
+		tx.commit();
+		em.close();
+	}
+}
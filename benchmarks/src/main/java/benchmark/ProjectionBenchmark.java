@@ -0,0 +1,92 @@
+package benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import model.Customer;
+import model.CustomerDTO;
+import model.FlatCustomerDTO;
+import persistence.DtoQuery;
+
+/*
+ * Lists 1000 customers with their addresses as entities, through the JPQL
+ * constructor expression of MainJPQL, and as flat DTOs read by a DtoQuery.
+ * Run with -prof gc to compare the bytes allocated per operation
+ * (gc.alloc.rate.norm).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProjectionBenchmark {
+	private static final DtoQuery<FlatCustomerDTO> FLAT_CUSTOMERS = new DtoQuery<>(
+			"SELECT c.id, c.firstname, c.lastname, c.email, a.street1, a.city, a.zipcode, a.country"
+					+ " FROM customer c JOIN address a ON a.id = c.address_fk",
+			rs -> new FlatCustomerDTO(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getString(4),
+					rs.getString(5), rs.getString(6), rs.getString(7), rs.getString(8)));
+
+	private EntityManagerFactory emf;
+	private EntityManager em;
+
+	@Setup
+	public void setUp() {
+		emf = H2Database.open("chapter06PU", "projection");
+		H2Database.loadCustomers(emf, 1000);
+	}
+
+	@TearDown
+	public void tearDown() {
+		emf.close();
+	}
+
+	@Setup(Level.Iteration)
+	public void open() {
+		em = emf.createEntityManager();
+	}
+
+	@TearDown(Level.Iteration)
+	public void close() {
+		em.close();
+	}
+
+	@Benchmark
+	public List<Customer> entities() {
+		List<Customer> customers = em.createQuery("SELECT c FROM Customer c JOIN FETCH c.address", Customer.class)
+				.getResultList();
+		em.clear();
+		return customers;
+	}
+
+	@Benchmark
+	public List<CustomerDTO> constructorExpression() {
+		List<CustomerDTO> customers = em
+				.createQuery("SELECT NEW model.CustomerDTO(c.firstName, c.lastName, c.address) FROM Customer c",
+						CustomerDTO.class)
+				.getResultList();
+		em.clear();
+		return customers;
+	}
+
+	@Benchmark
+	public List<FlatCustomerDTO> flatDtos() {
+		return FLAT_CUSTOMERS.getResultList(em);
+	}
+}
@@ -0,0 +1,123 @@
+package benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.ParameterExpression;
+import javax.persistence.criteria.Root;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import model.Customer;
+import model.Customer_;
+
+/*
+ * Runs the customers-by-first-name query of MainJPQL as the named query
+ * Customer.FIND_WITH_PARAM, as a criteria query with a parameter and as a
+ * native query; 1000 customers, 20 rows per query. FIND_WITH_PARAM is
+ * answered by its query results cache, which no hint turns off, so the
+ * same JPQL is also registered as a named query without it, to compare the
+ * three that go to the database.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+	private static final String FIND_WITH_PARAM_UNCACHED = "QueryBenchmark.findWithParamUncached";
+
+	private EntityManagerFactory emf;
+
+	@State(Scope.Thread)
+	public static class Session {
+		private EntityManager em;
+		private int next;
+
+		@Setup(Level.Iteration)
+		public void open(QueryBenchmark benchmark) {
+			em = benchmark.emf.createEntityManager();
+		}
+
+		@TearDown(Level.Iteration)
+		public void close() {
+			em.close();
+		}
+
+		private String nextFirstName() {
+			return "Name" + next++ % 50;
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		emf = H2Database.open("chapter06PU", "query");
+		H2Database.loadCustomers(emf, 1000);
+		EntityManager em = emf.createEntityManager();
+		emf.addNamedQuery(FIND_WITH_PARAM_UNCACHED,
+				em.createQuery("SELECT c FROM Customer c WHERE c.firstName = :fname", Customer.class));
+		em.close();
+	}
+
+	@TearDown
+	public void tearDown() {
+		emf.close();
+	}
+
+	@Benchmark
+	public List<Customer> namedQuery(Session session) {
+		List<Customer> customers = session.em.createNamedQuery(Customer.FIND_WITH_PARAM, Customer.class)
+				.setParameter("fname", session.nextFirstName())
+				.getResultList();
+		session.em.clear();
+		return customers;
+	}
+
+	@Benchmark
+	public List<Customer> namedQueryUncached(Session session) {
+		List<Customer> customers = session.em.createNamedQuery(FIND_WITH_PARAM_UNCACHED, Customer.class)
+				.setParameter("fname", session.nextFirstName())
+				.getResultList();
+		session.em.clear();
+		return customers;
+	}
+
+	@Benchmark
+	public List<Customer> criteriaQuery(Session session) {
+		CriteriaBuilder builder = session.em.getCriteriaBuilder();
+		CriteriaQuery<Customer> criteriaQuery = builder.createQuery(Customer.class);
+		Root<Customer> c = criteriaQuery.from(Customer.class);
+		ParameterExpression<String> firstName = builder.parameter(String.class);
+		criteriaQuery.select(c).where(builder.equal(c.get(Customer_.firstName), firstName));
+		List<Customer> customers = session.em.createQuery(criteriaQuery)
+				.setParameter(firstName, session.nextFirstName())
+				.getResultList();
+		session.em.clear();
+		return customers;
+	}
+
+	@Benchmark
+	public List<?> nativeQuery(Session session) {
+		List<?> customers = session.em.createNativeQuery("SELECT * FROM customer WHERE firstname = ?", Customer.class)
+				.setParameter(1, session.nextFirstName())
+				.getResultList();
+		session.em.clear();
+		return customers;
+	}
+}
@@ -0,0 +1,97 @@
+package benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import model.Customer;
+import persistence.ReadOnlyQueries;
+
+/*
+ * Reads the 1000 customers with Customer.FIND_ALL, registered in the
+ * persistence context and with ReadOnlyQueries. With queryResultsCache, the
+ * named query answers from its cached results; without, the same JPQL runs
+ * as a named query without the cache (see QueryBenchmark) and reads the
+ * rows every time. Sampled, for the percentiles of the latency (p0.99); the
+ * gc profiler of the benchmarks pom reports the bytes allocated per
+ * operation (gc.alloc.rate.norm), that is per 1000 rows.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReadOnlyQueryBenchmark {
+	private static final String FIND_ALL_UNCACHED = "ReadOnlyQueryBenchmark.findAllUncached";
+
+	@Param({ "true", "false" })
+	private boolean queryResultsCache;
+
+	private EntityManagerFactory emf;
+	private String queryName;
+
+	@State(Scope.Thread)
+	public static class Session {
+		private EntityManager em;
+
+		@Setup(Level.Iteration)
+		public void open(ReadOnlyQueryBenchmark benchmark) {
+			em = benchmark.emf.createEntityManager();
+		}
+
+		@TearDown(Level.Iteration)
+		public void close() {
+			em.close();
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		emf = H2Database.open("chapter06PU", "read-only");
+		H2Database.loadCustomers(emf, 1000);
+		queryName = Customer.FIND_ALL;
+		if (!queryResultsCache) {
+			EntityManager em = emf.createEntityManager();
+			emf.addNamedQuery(FIND_ALL_UNCACHED, em.createQuery("SELECT c FROM Customer c", Customer.class));
+			em.close();
+			queryName = FIND_ALL_UNCACHED;
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		emf.close();
+	}
+
+	@Benchmark
+	public List<Customer> managed(Session session) {
+		List<Customer> customers = session.em.createNamedQuery(queryName, Customer.class).getResultList();
+		session.em.clear();
+		return customers;
+	}
+
+	@Benchmark
+	public List<Customer> readOnly(Session session) {
+		List<Customer> customers = ReadOnlyQueries
+				.readOnly(session.em.createNamedQuery(queryName, Customer.class)).getResultList();
+		session.em.clear();
+		return customers;
+	}
+}
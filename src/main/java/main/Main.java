@@ -2,18 +2,36 @@ package main;
 
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import javax.persistence.Cache;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
 import javax.persistence.LockModeType;
+import javax.persistence.LockTimeoutException;
 import javax.persistence.Persistence;
 
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+
 import model.Address;
 import model.Book;
 import model.CD;
 import model.Customer;
+import persistence.CacheCoordinator;
+import persistence.CacheStatistics;
+import persistence.ConflictStatistics;
+import persistence.EntityManagerExecutor;
+import persistence.LockOptions;
+import persistence.LockStatistics;
+import persistence.OptimisticRetryExecutor;
+import persistence.PooledDataSource;
+import persistence.PriceDeltaCombiner;
+import persistence.PriceRepository;
+import persistence.QueryStatistics;
+import persistence.RowLocks;
+import persistence.WorkQueue;
 
 /*
  * Detailed info on locking is here: http://lostincoding.blogspot.com/2015/11/differences-in-jpa-entity-locking-modes.html
@@ -22,8 +40,17 @@ public class Main {
 	private static EntityManagerFactory emf;
 
 	public static void main(String[] args) throws InterruptedException {
-		// Generate schema
-		Persistence.generateSchema("chapter06PU", new HashMap<Object, Object>());
+		// The schema is checked against the entities when the factory logs in,
+		// rather than dropped and created at every start. It is generated on
+		// demand, with -Dschema.action=drop-and-create, and the DDL scripts
+		// are written with -Dschema.scripts=true
+		Map<String, Object> properties = new HashMap<>();
+		properties.put(PersistenceUnitProperties.SCHEMA_GENERATION_DATABASE_ACTION,
+				System.getProperty("schema.action", PersistenceUnitProperties.SCHEMA_GENERATION_NONE_ACTION));
+		if (Boolean.getBoolean("schema.scripts")) {
+			properties.put(PersistenceUnitProperties.SCHEMA_GENERATION_SCRIPTS_ACTION,
+					PersistenceUnitProperties.SCHEMA_GENERATION_DROP_AND_CREATE_ACTION);
+		}
 
 		// 1-Creates instances of objects to persist
 		Customer customer = new Customer("Antony", "Bandit", "tballa@mail.com", 20, "M");
@@ -31,7 +58,7 @@ public class Main {
 		customer.setAddress(address);
 
 		// 2-Obtains an entity manager and a transaction
-		emf = Persistence.createEntityManagerFactory("chapter06PU");
+		emf = Persistence.createEntityManagerFactory("chapter06PU", properties);
 		EntityManager em = emf.createEntityManager();
 
 		// 3-Persists the objects to the database
@@ -45,7 +72,11 @@ public class Main {
 			// The following will push the changes to the database, although they will
 			// be visible only after commit. The usage of flush is for cases in which
 			// we have a lot of objects in the first-level cache and this would lead
-			// to an OutOfMemoryException
+			// to an OutOfMemoryException (persistence.CustomerBulkLoader applies
+			// this to the loading of large customer feeds). With the attribute
+			// change tracking of chapter06PU, flush and commit no longer compare
+			// every managed object with a copy of it, but the objects are still
+			// held until clear
 			em.flush();
 			em.clear();
 
@@ -78,7 +109,9 @@ public class Main {
 
 		System.out.println("em.contains(customer): " + em.contains(customer));
 
-		// Use the merge operation to re-attach an entity
+		// Use the merge operation to re-attach an entity. An entity that is not in
+		// the shared cache is read again first; persistence.DetachedUpdates writes
+		// it back with a single UPDATE instead
 		customer.setFirstName("Alexander");
 
 		tx = em.getTransaction();
@@ -178,17 +211,23 @@ public class Main {
 
 		// Here we can see that the query to get the Customer object is not issued,
 		// because the entity is cacheable, and so it's stored in the second-level
-		// cache. The query to get the Address object is instead issued.
+		// cache. Since Address is cacheable as well, no query is issued for the
+		// Address object either.
 		// If we change in Customer class, configuring @Cacheable(false), the
 		// entity manager will need to issue a query to the database also for
 		// the Customer object
 		Customer customerFromCache = em.find(Customer.class, customer.getId());
 		System.out.println("Customer object from cache: " + customerFromCache);
+		System.out.println("Cache statistics: " + CacheStatistics.all(emf).values());
 
-		// After eviction, the object is not anymore in the second-level cache
-		cache.evict(Customer.class);
+		// After eviction, the object is not anymore in the second-level cache.
+		// Evicting through the CacheCoordinator also evicts the Address owned
+		// by each evicted Customer
+		new CacheCoordinator(emf).evict(Customer.class, true);
 		System.out.println("cache.contains(Customer.class, customer.getId()): "
 				+ cache.contains(Customer.class, customer.getId()));
+		System.out.println("cache.contains(Address.class, address.getId()): "
+				+ cache.contains(Address.class, address.getId()));
 
 		tx.begin();
 
@@ -202,15 +241,33 @@ public class Main {
 		BookPriceModifier bookPriceModifier1 = new BookPriceModifier(book.getId(), 5f);
 		BookPriceModifier bookPriceModifier2 = new BookPriceModifier(book.getId(), 10f);
 
-		Thread tBook1 = new Thread(bookPriceModifier1);
-		tBook1.start();
+		// The workers run on virtual threads when the JDK has them, and never
+		// more of them at once than the connections of the pool
+		EntityManagerExecutor workers = new EntityManagerExecutor(emf);
+
+		CompletableFuture<Void> book1 = workers.submit(bookPriceModifier1);
+		CompletableFuture<Void> book2 = workers.submit(bookPriceModifier2);
+
+		// Wait for the workers to finish
+		CompletableFuture.allOf(book1, book2).join();
 
-		Thread tBook2 = new Thread(bookPriceModifier2);
-		tBook2.start();
+		System.out.println("Conflict statistics: " + ConflictStatistics.all(emf).values());
 
-		// Wait for threads to finish
-		tBook1.join();
-		tBook2.join();
+		// The same kind of increase, without reading the book first: a single
+		// UPDATE ... SET price = price + ?, version = version + 1, which cannot
+		// conflict with the other writers
+		new PriceRepository<>(emf, Book.class).incrementPrice(book.getId(), 5f);
+
+		// Many small increases on the same book are summed in memory and written
+		// with one UPDATE every 100 ms or every 1000 increases; getPrice() adds
+		// those not written yet, and close() writes the rest
+		try (PriceDeltaCombiner<Book> combiner = new PriceDeltaCombiner<>(emf, Book.class, 100, 1000,
+				PriceDeltaCombiner.Durability.ON_CLOSE)) {
+			for (int i = 0; i < 2500; i++) {
+				combiner.add(book.getId(), 0.01f);
+			}
+			System.out.println("Book price with pending increases: " + combiner.getPrice(book.getId()));
+		}
 
 		tx.begin();
 
@@ -224,23 +281,46 @@ public class Main {
 		CDPriceModifier cdPriceModifier = new CDPriceModifier(cd.getId(), 5f);
 		CDPessimisticReadTester cdPessimisticReadTester = new CDPessimisticReadTester(cd.getId());
 
-		Thread tCDPriceModifier = new Thread(cdPriceModifier);
-		tCDPriceModifier.start();
+		CompletableFuture<Void> cdModification = workers.submit(cdPriceModifier);
 
 		// Let's delay the reading of 3 seconds, so that we make sure the
 		// update executed in CPPriceModifier will start early
-		Thread tCDPessimisticReadTester = new Thread(cdPessimisticReadTester);
 		try {
 			Thread.sleep(3000);
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
 
-		tCDPessimisticReadTester.start();
+		CompletableFuture<Void> cdRead = workers.submit(cdPessimisticReadTester);
+
+		// Wait for the workers to finish
+		CompletableFuture.allOf(cdModification, cdRead).join();
+
+		// The cheap CDs as a queue: 4 workers raise their prices in batches of
+		// 5, each one skipping the rows locked by the others instead of waiting
+		tx.begin();
+		for (int i = 0; i < 40; i++) {
+			em.persist(new CD("Bargain " + i, 10f, "Reduced price"));
+		}
+		tx.commit();
+
+		WorkQueue<CD> bargains = new WorkQueue<>(emf, CD.class, "PRICE < 20", 5);
+		CompletableFuture<?>[] drains = new CompletableFuture<?>[4];
+		for (int i = 0; i < drains.length; i++) {
+			drains[i] = workers.submit(() -> bargains.drain(bargain -> bargain.increasePrice(10f)));
+		}
+		CompletableFuture.allOf(drains).join();
+		workers.close();
+
+		System.out.println("Lock statistics: " + LockStatistics.all(emf).values());
 
-		// Wait for threads to finish
-		tCDPriceModifier.join();
-		tCDPessimisticReadTester.join();
+		// Unlike CDPriceModifier, this holds the row lock only for the duration
+		// of the UPDATE
+		new PriceRepository<>(emf, CD.class).incrementPrice(cd.getId(), 5f);
+
+		System.out.println("Pool statistics: " + PooledDataSource.of(emf));
+		// Also available over JMX, as persistence:type=QueryStatistics beans
+		QueryStatistics.all(emf).values().forEach(statistics -> System.out.println("Query statistics: " + statistics));
 
 		em.close();
 		emf.close();
@@ -259,16 +339,9 @@ public class Main {
 
 		@Override
 		public void run() {
-			EntityManager em = emf.createEntityManager();
+			System.out.println("Started modifying Book object at " + new Date());
 
 			try {
-
-				EntityTransaction tx = em.getTransaction();
-
-				System.out.println("Started modifying Book object at " + new Date() + ", transaction: " + tx);
-			
-				tx.begin();
-
 				// Using the @Version annotation on the Book entity, automatically ensures the
 				// optimistic locking. But, to control the point where the locking happens,
 				// we can do it explicitly, either via a read and lock (lock as you read):
@@ -277,21 +350,22 @@ public class Main {
 				// Book book = em.find(Book.class, id);
 				// em.lock(book, LockModeType.OPTIMISTIC_FORCE_INCREMENT);
 				// LockModeType.OPTIMISTIC_FORCE_INCREMENT forces a version increase at commit
-				// time, even if there are no changes on the entity
-				Book book = em.find(Book.class, id);
-				if (book != null) {
-					book.increasePrice(price);
-				}
-
-				tx.commit();
-				
-				System.out.println("Ended modifying Book object at " + new Date() + ", transaction: " + tx);
+				// time, even if there are no changes on the entity.
+				// When the other thread commits first, the OptimisticLockException is
+				// caught by the executor, which reads the book again and re-applies
+				// the increase after a short random pause
+				new OptimisticRetryExecutor(emf).run(em -> {
+					Book book = em.find(Book.class, id);
+					if (book != null) {
+						book.increasePrice(price);
+					}
+				});
+
+				System.out.println("Ended modifying Book object at " + new Date());
 
 			} catch (Exception e) {
 				System.out.println("While increasing the price of " + price + ", the following problem appeared: "
 						+ e.getMessage());
-			} finally {
-				em.close();
 			}
 		}
 	}
@@ -367,12 +441,22 @@ public class Main {
 			// update in CDPriceModifier to complete). On the contrary,
 			// if the CDPriceModifier has PESSIMISTIC_READ, here we
 			// should be able to read, but it's not guaranteed, and
-			// it depends on the implementation
-			CD cd = em.find(CD.class, id, LockModeType.PESSIMISTIC_READ);
+			// it depends on the implementation.
+			// The wait is bounded: with LockOptions.noWait() this would fail
+			// at once, with a timeout under the 7 seconds left to
+			// CDPriceModifier it would fail after that timeout
+			try {
+				CD cd = new RowLocks(emf).find(em, CD.class, id, LockModeType.PESSIMISTIC_READ,
+						LockOptions.timeout(15000));
 
-			tx.commit();
+				tx.commit();
 
-			System.out.println("Ended reading CD object at " + new Date() + ": " + cd);
+				System.out.println("Ended reading CD object at " + new Date() + ": " + cd);
+			} catch (LockTimeoutException e) {
+				tx.rollback();
+
+				System.out.println("Gave up reading CD object at " + new Date() + ": " + e.getMessage());
+			}
 
 			em.close();
 
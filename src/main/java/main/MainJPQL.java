@@ -1,15 +1,14 @@
 package main;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Stream;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
-import javax.persistence.ParameterMode;
 import javax.persistence.Persistence;
 import javax.persistence.Query;
-import javax.persistence.StoredProcedureQuery;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
@@ -17,6 +16,18 @@ import javax.persistence.criteria.Root;
 
 import model.Customer;
 import model.Customer_;
+import model.FlatCustomerDTO;
+import persistence.BulkOperations;
+import persistence.ColumnarQuery;
+import persistence.ColumnarResult;
+import persistence.CriteriaQueryCache;
+import persistence.CustomerArchiver;
+import persistence.DtoQuery;
+import persistence.FetchProfile;
+import persistence.KeysetPaginator;
+import persistence.QueryStatistics;
+import persistence.QueryStreams;
+import persistence.ReadOnlyQueries;
 
 public class MainJPQL {
 
@@ -47,6 +58,15 @@ public class MainJPQL {
 		result = query.getResultList();
 		System.out.println(result);
 
+		// The same, without building the Address entities: the columns are
+		// copied from the ResultSet into flat DTOs
+		DtoQuery<FlatCustomerDTO> flatCustomers = new DtoQuery<>(
+				"SELECT c.id, c.firstname, c.lastname, c.email, a.street1, a.city, a.zipcode, a.country"
+						+ " FROM customer c JOIN address a ON a.id = c.address_fk ORDER BY c.id",
+				rs -> new FlatCustomerDTO(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getString(4),
+						rs.getString(5), rs.getString(6), rs.getString(7), rs.getString(8)));
+		print(flatCustomers.getResultList(em));
+
 		query = em.createQuery("SELECT c FROM model.Customer c WHERE c.age NOT BETWEEN 27 and 30");
 		result = query.getResultList();
 		System.out.println(result);
@@ -75,31 +95,51 @@ public class MainJPQL {
 		result = query.getResultList();
 		print(result);
 
-		TypedQuery<Customer> typedQuery = em
-				.createQuery("SELECT c FROM model.Customer c WHERE c.address.country=:country", Customer.class);
+		// The same report in columns: the countries as codes into a dictionary
+		// and the counts in a long[], with no Object[] nor Long per row
+		ColumnarQuery countryReport = new ColumnarQuery("SELECT a.country, COUNT(*) FROM customer c"
+				+ " JOIN address a ON a.id = c.address_fk GROUP BY a.country HAVING a.country <> 'UK'",
+				ColumnarResult.Type.DICTIONARY, ColumnarResult.Type.LONG);
+		ColumnarResult countries = countryReport.getResult(em);
+		long[] counts = countries.getLongs(1);
+		for (int row = 0; row < countries.getRowCount(); row++) {
+			System.out.println(countries.getString(0, row) + "  " + counts[row]);
+		}
+
+		// The customers are only printed: read-only, they are returned from the
+		// shared cache as they are, rather than copied into the persistence
+		// context, and must not be modified
+		TypedQuery<Customer> typedQuery = ReadOnlyQueries.readOnly(em
+				.createQuery("SELECT c FROM model.Customer c WHERE c.address.country=:country", Customer.class));
 		typedQuery.setParameter("country", "UK");
 		List<Customer> typedResult = typedQuery.getResultList();
 		print(typedResult);
 
-		Query queryTotal = em.createQuery("SELECT COUNT(c.id) FROM model.Customer c");
-		long total = (long) queryTotal.getSingleResult();
+		// Paging with setFirstResult(offset) makes the database skip all the
+		// previous rows, so the deeper the page, the slower the query. The
+		// keyset paginator seeks past the last id of the previous page instead,
+		// and needs no COUNT to know when to stop
 		int pageSize = 2;
-		int numChunks = (int) Math.ceil(((double) total) / pageSize);
-		typedQuery = em.createQuery("SELECT c FROM model.Customer c", Customer.class);
-		typedQuery.setMaxResults(pageSize);
-		for (int i = 0; i < numChunks; i++) {
-			int offset = i * pageSize;
-			typedQuery.setFirstResult(offset);
-			typedResult = typedQuery.getResultList();
-			System.out.println("Rows having offset: " + offset);
-			print(typedResult);
+		KeysetPaginator<Customer> paginator = new KeysetPaginator<>(em, Customer.class, pageSize);
+		KeysetPaginator.Page<Customer> page = paginator.page(null);
+		print(page.getContent());
+		while (page.hasNext()) {
+			System.out.println("Rows after token: " + page.getNextToken());
+			page = paginator.page(page.getNextToken());
+			print(page.getContent());
 		}
 
+		// The whole table is streamed through a JDBC cursor rather than
+		// loaded in memory with getResultList(). Without a fetch profile, the
+		// Address of each Customer would be read with a SELECT of its own
 		typedQuery = em.createNamedQuery(Customer.FIND_ALL, Customer.class);
-		typedResult = typedQuery.getResultList();
-		print(typedResult);
+		FetchProfile.join("c.address").applyTo(typedQuery);
+		print(QueryStreams.stream(em, typedQuery));
 
+		// The addresses are read with one more SELECT ... WHERE ID IN (...)
+		// for every 256 customers
 		typedQuery = em.createNamedQuery(Customer.FIND_WITH_PARAM, Customer.class);
+		FetchProfile.batch("c.address").applyTo(typedQuery);
 		typedQuery.setParameter("fname", "Mandy");
 		typedResult = typedQuery.getResultList();
 		print(typedResult);
@@ -109,7 +149,10 @@ public class MainJPQL {
 		Root<Customer> c = criteriaQuery.from(Customer.class);
 		criteriaQuery.select(c).where(builder.and(builder.equal(c.get(Customer_.firstName), "Sandy"),
 				(builder.gt(c.get(Customer_.age), 20))));
-		typedQuery = em.createQuery(criteriaQuery);
+		// The SQL generated for this query is kept, and reused for the criteria
+		// queries differing only by their literals ("Sandy", 20)
+		CriteriaQueryCache criteriaQueryCache = new CriteriaQueryCache(emf);
+		typedQuery = criteriaQueryCache.createQuery(em, criteriaQuery);
 		List<Customer> customers = typedQuery.getResultList();
 		print(customers);
 
@@ -122,27 +165,24 @@ public class MainJPQL {
 
 		criteriaQuery.select(c).where(builder.greaterThan(c.get(Customer_.age).as(Integer.class), 40));
 		typedQuery = em.createQuery(criteriaQuery);
-		List<Customer> customersAbove40 = typedQuery.getResultList();
+		Stream<Customer> customersAbove40 = QueryStreams.stream(em, typedQuery);
 		print(customersAbove40);
 
 		Query nativeQuery = em.createNativeQuery("SELECT * FROM customer", Customer.class);
-		@SuppressWarnings("unchecked")
-		List<Customer> customersFromNativeQuery = nativeQuery.getResultList();
+		Stream<Customer> customersFromNativeQuery = QueryStreams.stream(em, nativeQuery);
 		print(customersFromNativeQuery);
 
 		// From the annotation, it knows this is a NamedNativeQuery
 		TypedQuery<Customer> namedNativeQuery = em.createNamedQuery(Customer.NATIVE_FIND_ALL, Customer.class);
-		List<Customer> customersFromNamedNativeQuery = namedNativeQuery.getResultList();
+		Stream<Customer> customersFromNamedNativeQuery = QueryStreams.stream(em, namedNativeQuery);
 		print(customersFromNamedNativeQuery);
 
-		StoredProcedureQuery storedProcedureQuery = em.createNamedStoredProcedureQuery(Customer.ARCHIVE);
-		storedProcedureQuery.setParameter("p_email", "lemon@mail.com");
-		storedProcedureQuery.execute();
-
-		storedProcedureQuery = em.createStoredProcedureQuery("archive_customer");
-		storedProcedureQuery.registerStoredProcedureParameter("p_email", String.class, ParameterMode.IN);
-		storedProcedureQuery.setParameter("p_email", "sbean@mail.com");
-		storedProcedureQuery.execute();
+		// The archive_customer procedure (Customer.ARCHIVE) moves one customer
+		// per call, with a commit each. The archiver moves any number of them
+		// with a few set-based statements per chunk of 1000, and evicts them
+		// from the shared cache
+		CustomerArchiver archiver = new CustomerArchiver(emf);
+		print(archiver.archiveEmails(Arrays.asList("lemon@mail.com", "sbean@mail.com")));
 
 		boolean bulkOperations = false;
 		try {
@@ -154,8 +194,10 @@ public class MainJPQL {
 		if (bulkOperations) {
 			EntityTransaction tx = em.getTransaction();
 			tx.begin();
-			query = em.createQuery("UPDATE model.Customer c SET c.firstName = 'Young' WHERE c.age < 27");
-			int intResult = query.executeUpdate();
+			// Only the customers updated are invalidated in the shared cache, and
+			// those in the persistence context are refreshed
+			BulkOperations<Customer> customerOperations = new BulkOperations<>(emf, Customer.class);
+			int intResult = customerOperations.update(em, "e.firstName = 'Young'", "e.age < 27");
 
 			// By setting the flush mode to COMMIT on the transaction, the effect
 			// of updates made to entities in the persistence context is not
@@ -171,12 +213,13 @@ public class MainJPQL {
 			tx.commit();
 
 			tx.begin();
-			query = em.createQuery("DELETE FROM model.Customer c WHERE c.age < 27");
-			intResult = query.executeUpdate();
+			intResult = customerOperations.delete(em, "e.age < 27");
 			tx.commit();
 			print(intResult);
 		}
 
+		QueryStatistics.all(emf).values().forEach(statistics -> System.out.println("Query statistics: " + statistics));
+
 		// 2-Closes the entity manager and the factory
 		em.close();
 		emf.close();
@@ -188,16 +231,25 @@ public class MainJPQL {
 		if (resultObj instanceof List<?>) {
 			List<?> result = (List<?>) resultObj;
 			for (Object object : result) {
-				if (object instanceof Object[]) {
-					Object[] arrayObj = (Object[]) object;
-					Stream.of(arrayObj).forEach(el -> System.out.print(el + "  "));
-					System.out.println();
-				} else {
-					System.out.println(object);
-				}
+				printRow(object);
+			}
+		} else if (resultObj instanceof Stream<?>) {
+			// Rows are printed as they are read, and the cursor is closed at the end
+			try (Stream<?> result = (Stream<?>) resultObj) {
+				result.forEach(MainJPQL::printRow);
 			}
 		} else {
 			System.out.println(resultObj);
 		}
 	}
+
+	private static void printRow(Object object) {
+		if (object instanceof Object[]) {
+			Object[] arrayObj = (Object[]) object;
+			Stream.of(arrayObj).forEach(el -> System.out.print(el + "  "));
+			System.out.println();
+		} else {
+			System.out.println(object);
+		}
+	}
 }
@@ -1,13 +1,15 @@
 package model;
 
+import javax.persistence.Cacheable;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 
 @Entity
+@Cacheable(true)
 public class Address {
 	@Id
-	@GeneratedValue
+	@GeneratedValue(generator = "ADDRESS_SEQ")
 	private Long id;
 	private String street1;
 	private String city;
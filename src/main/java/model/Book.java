@@ -12,7 +12,7 @@ import javax.persistence.GeneratedValue;
 @Entity
 public class Book {
 	@Id
-	@GeneratedValue()
+	@GeneratedValue(generator = "BOOK_SEQ")
 	private Long id;
 	// An entity is automatically enabled for optimistic locking
 	// if it has a property mapped with a @Version annotation
@@ -11,7 +11,7 @@ import javax.persistence.GeneratedValue;
 @Entity
 public class CD {
 	@Id
-	@GeneratedValue
+	@GeneratedValue(generator = "CD_SEQ")
 	private Long id;
 	private String title;
 	private Float price;
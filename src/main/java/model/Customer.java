@@ -14,12 +14,27 @@ import javax.persistence.NamedStoredProcedureQuery;
 import javax.persistence.StoredProcedureParameter;
 import javax.persistence.OneToOne;
 import javax.persistence.ParameterMode;
+import javax.persistence.QueryHint;
+
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
 
 @Entity
 @Cacheable(true)
-@NamedQueries({ @NamedQuery(name = Customer.FIND_ALL, query = "SELECT c FROM model.Customer c"),
-		@NamedQuery(name = Customer.FIND_VINCENT, query = "SELECT c FROM model.Customer c WHERE c.firstName = 'Vincent'"),
-		@NamedQuery(name = Customer.FIND_WITH_PARAM, query = "SELECT c FROM model.Customer c WHERE c.firstName = :fname") })
+// The results of FIND_ALL and FIND_WITH_PARAM are cached, keyed by the bound
+// parameters, for at most one minute. EclipseLink drops the cached results as
+// soon as a Customer is written through an EntityManager or by a bulk
+// UPDATE/DELETE query
+@NamedQueries({
+		@NamedQuery(name = Customer.FIND_ALL, query = "SELECT c FROM Customer c", hints = {
+				@QueryHint(name = QueryHints.QUERY_RESULTS_CACHE, value = HintValues.TRUE),
+				@QueryHint(name = QueryHints.QUERY_RESULTS_CACHE_SIZE, value = "1"),
+				@QueryHint(name = QueryHints.QUERY_RESULTS_CACHE_EXPIRY, value = "60000") }),
+		@NamedQuery(name = Customer.FIND_VINCENT, query = "SELECT c FROM Customer c WHERE c.firstName = 'Vincent'"),
+		@NamedQuery(name = Customer.FIND_WITH_PARAM, query = "SELECT c FROM Customer c WHERE c.firstName = :fname", hints = {
+				@QueryHint(name = QueryHints.QUERY_RESULTS_CACHE, value = HintValues.TRUE),
+				@QueryHint(name = QueryHints.QUERY_RESULTS_CACHE_SIZE, value = "1000"),
+				@QueryHint(name = QueryHints.QUERY_RESULTS_CACHE_EXPIRY, value = "60000") }) })
 @NamedNativeQuery(name = Customer.NATIVE_FIND_ALL, query = "SELECT * FROM customer")
 @NamedStoredProcedureQuery(name = Customer.ARCHIVE, procedureName = "archive_customer", parameters = {
 		@StoredProcedureParameter(name = "p_email", mode = ParameterMode.IN, type = String.class) })
@@ -31,7 +46,7 @@ public class Customer {
 	public static final String ARCHIVE = "Customer.archive";
 
 	@Id
-	@GeneratedValue
+	@GeneratedValue(generator = "CUSTOMER_SEQ")
 	private Long id;
 	private String firstName;
 	private String lastName;
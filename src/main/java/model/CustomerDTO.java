@@ -12,6 +12,7 @@ public class CustomerDTO {
 		super();
 		this.firstName = firstName;
 		this.lastName = lastName;
+		this.address = address;
 	}
 
 	public String getFirstName() {
@@ -0,0 +1,66 @@
+package model;
+
+/*
+ * A customer and its address as plain columns, for read-only listings: see
+ * persistence.DtoQuery, which fills it straight from the JDBC ResultSet.
+ */
+public class FlatCustomerDTO {
+	private final long id;
+	private final String firstName;
+	private final String lastName;
+	private final String email;
+	private final String street1;
+	private final String city;
+	private final String zipcode;
+	private final String country;
+
+	public FlatCustomerDTO(long id, String firstName, String lastName, String email, String street1, String city,
+			String zipcode, String country) {
+		this.id = id;
+		this.firstName = firstName;
+		this.lastName = lastName;
+		this.email = email;
+		this.street1 = street1;
+		this.city = city;
+		this.zipcode = zipcode;
+		this.country = country;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getFirstName() {
+		return firstName;
+	}
+
+	public String getLastName() {
+		return lastName;
+	}
+
+	public String getEmail() {
+		return email;
+	}
+
+	public String getStreet1() {
+		return street1;
+	}
+
+	public String getCity() {
+		return city;
+	}
+
+	public String getZipcode() {
+		return zipcode;
+	}
+
+	public String getCountry() {
+		return country;
+	}
+
+	@Override
+	public String toString() {
+		return "FlatCustomerDTO [id=" + id + ", firstName=" + firstName + ", lastName=" + lastName + ", email=" + email
+				+ ", street1=" + street1 + ", city=" + city + ", zipcode=" + zipcode + ", country=" + country + "]";
+	}
+}
@@ -0,0 +1,130 @@
+package persistence;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.LockModeType;
+import javax.persistence.Parameter;
+import javax.persistence.Query;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.internal.sessions.UnitOfWorkImpl;
+
+/*
+ * Bulk UPDATE and DELETE statements that only invalidate the entities they
+ * change. A JPQL bulk statement bypasses the persistence context, and on
+ * commit EclipseLink invalidates the shared cache entries matching its WHERE
+ * clause as evaluated against the cached entities: when the clause cannot be
+ * evaluated in memory (a subquery, for instance) every entity of the class
+ * is invalidated, and an entity whose cached copy is stale may be missed.
+ * Here the ids of the matching rows are read and locked first, and the
+ * statement is run WHERE e.id IN :ids, chunks of CHUNK_SIZE ids at a time,
+ * which EclipseLink can always match exactly in the cache. The managed
+ * entities among them are refreshed after an UPDATE and detached after a
+ * DELETE. As with PriceRepository, an UPDATE increments the @Version, if any.
+ */
+public class BulkOperations<T> {
+	public static final int CHUNK_SIZE = 1000;
+
+	private final Class<T> entityClass;
+	private final String entityName;
+	private final String idName;
+	private final String versionIncrement;
+
+	public BulkOperations(EntityManagerFactory emf, Class<T> entityClass) {
+		EntityType<T> entityType = emf.getMetamodel().entity(entityClass);
+		String versionIncrement = "";
+		for (SingularAttribute<? super T, ?> attribute : entityType.getSingularAttributes()) {
+			if (attribute.isVersion()) {
+				versionIncrement = ", e." + attribute.getName() + " = e." + attribute.getName() + " + 1";
+			}
+		}
+		this.entityClass = entityClass;
+		this.entityName = entityType.getName();
+		this.idName = entityType.getId(entityType.getIdType().getJavaType()).getName();
+		this.versionIncrement = versionIncrement;
+	}
+
+	/*
+	 * Runs UPDATE <entity> e SET <set> WHERE <condition>, where set and
+	 * condition are JPQL on e, e.g. update(em, "e.firstName = :name",
+	 * "e.age < :age", parameters). Joins the transaction of the entity
+	 * manager, which must be active. Returns the number of entities updated.
+	 */
+	public int update(EntityManager em, String set, String condition, Map<String, ?> parameters) {
+		List<Object> ids = lockIds(em, condition, parameters);
+		int count = execute(em, "UPDATE " + entityName + " e SET " + set + versionIncrement, ids, parameters);
+		forEachManaged(em, ids, em::refresh);
+		return count;
+	}
+
+	public int update(EntityManager em, String set, String condition) {
+		return update(em, set, condition, Collections.emptyMap());
+	}
+
+	// Runs DELETE FROM <entity> e WHERE <condition>, see update()
+	public int delete(EntityManager em, String condition, Map<String, ?> parameters) {
+		List<Object> ids = lockIds(em, condition, parameters);
+		int count = execute(em, "DELETE FROM " + entityName + " e", ids, parameters);
+		forEachManaged(em, ids, em::detach);
+		return count;
+	}
+
+	public int delete(EntityManager em, String condition) {
+		return delete(em, condition, Collections.emptyMap());
+	}
+
+	// The rows stay locked until the end of the transaction, so that they
+	// still match the condition when they are updated
+	private List<Object> lockIds(EntityManager em, String condition, Map<String, ?> parameters) {
+		Query query = em.createQuery("SELECT e." + idName + " FROM " + entityName + " e WHERE " + condition)
+				.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+		bind(query, parameters);
+		@SuppressWarnings("unchecked")
+		List<Object> ids = query.getResultList();
+		return ids;
+	}
+
+	private int execute(EntityManager em, String statement, List<Object> ids, Map<String, ?> parameters) {
+		int count = 0;
+		for (int from = 0; from < ids.size(); from += CHUNK_SIZE) {
+			// Bound, so that all the chunks share one prepared statement
+			Query query = em.createQuery(statement + " WHERE e." + idName + " IN :ids")
+					.setHint(QueryHints.BIND_PARAMETERS, HintValues.TRUE)
+					.setParameter("ids", ids.subList(from, Math.min(from + CHUNK_SIZE, ids.size())));
+			bind(query, parameters);
+			count += query.executeUpdate();
+		}
+		return count;
+	}
+
+	// Binds the parameters the query uses, the others belong to the other query
+	private static void bind(Query query, Map<String, ?> parameters) {
+		for (Parameter<?> parameter : query.getParameters()) {
+			if (parameters.containsKey(parameter.getName())) {
+				query.setParameter(parameter.getName(), parameters.get(parameter.getName()));
+			}
+		}
+	}
+
+	// Only the persistence context itself is looked up, see PriceRepository
+	private void forEachManaged(EntityManager em, List<Object> ids, Consumer<Object> action) {
+		UnitOfWorkImpl unitOfWork = em.unwrap(UnitOfWorkImpl.class);
+		ClassDescriptor descriptor = unitOfWork.getDescriptor(entityClass);
+		for (Object id : ids) {
+			Object managed = unitOfWork.getIdentityMapAccessorInstance().getFromLocalIdentityMap(id, entityClass, true,
+					descriptor);
+			if (managed != null && em.contains(managed)) {
+				action.accept(managed);
+			}
+		}
+	}
+}
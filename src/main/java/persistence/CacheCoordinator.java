@@ -0,0 +1,91 @@
+package persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.internal.identitymaps.CacheKey;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.mappings.DatabaseMapping;
+import org.eclipse.persistence.mappings.ObjectReferenceMapping;
+
+/*
+ * Evicts entities from the shared cache together with the entities they own.
+ * An owned entity is the target of a privately owned reference, i.e. one
+ * mapped with orphanRemoval = true, like Customer.address: the Address of an
+ * evicted Customer is evicted as well, so the two entries never disagree.
+ * EclipseLink already removes both from the cache when such an entity is
+ * deleted through the EntityManager; this is for changes made behind its
+ * back, such as the archive_customer stored procedure or CustomerArchiver.
+ */
+public class CacheCoordinator {
+	private final AbstractSession session;
+
+	public CacheCoordinator(EntityManagerFactory emf) {
+		this.session = (AbstractSession) JpaHelper.getServerSession(emf);
+	}
+
+	// The entities of this model have simple ids, which are their cache keys as well
+	public void evict(Class<?> entityClass, Object id, boolean cascade) {
+		evict(session.getDescriptor(entityClass), id, cascade);
+	}
+
+	// Also drops the cached query results of the class, which may include these entities
+	public void evict(Class<?> entityClass, Collection<?> ids, boolean cascade) {
+		ClassDescriptor descriptor = session.getDescriptor(entityClass);
+		for (Object id : ids) {
+			evict(descriptor, id, cascade);
+		}
+		session.getIdentityMapAccessor().invalidateQueryCache(entityClass);
+	}
+
+	public void evict(Class<?> entityClass, boolean cascade) {
+		ClassDescriptor descriptor = session.getDescriptor(entityClass);
+		if (cascade) {
+			List<CacheKey> cacheKeys = new ArrayList<>();
+			Enumeration<CacheKey> keys = session.getIdentityMapAccessorInstance().getIdentityMap(descriptor)
+					.cloneKeys();
+			while (keys.hasMoreElements()) {
+				cacheKeys.add(keys.nextElement());
+			}
+			for (CacheKey cacheKey : cacheKeys) {
+				evictOwned(descriptor, cacheKey.getObject());
+			}
+		}
+		session.getIdentityMapAccessor().invalidateClass(entityClass, false);
+	}
+
+	private void evict(ClassDescriptor descriptor, Object primaryKey, boolean cascade) {
+		Class<?> entityClass = descriptor.getJavaClass();
+		if (cascade) {
+			// forMerge = true, so that this lookup is not counted as a cache hit
+			CacheKey cacheKey = session.getIdentityMapAccessorInstance().getCacheKeyForObject(primaryKey,
+					entityClass, descriptor, true);
+			if (cacheKey != null) {
+				evictOwned(descriptor, cacheKey.getObject());
+			}
+		}
+		session.getIdentityMapAccessor().invalidateObject(primaryKey, entityClass);
+	}
+
+	private void evictOwned(ClassDescriptor descriptor, Object object) {
+		if (object == null) {
+			return;
+		}
+		for (DatabaseMapping mapping : descriptor.getMappings()) {
+			if (mapping.isPrivateOwned() && mapping.isObjectReferenceMapping()) {
+				ObjectReferenceMapping referenceMapping = (ObjectReferenceMapping) mapping;
+				// Read from the value holder or the row, without loading the target
+				Object primaryKey = referenceMapping.extractPrimaryKeysForReferenceObject(object, session);
+				if (primaryKey != null) {
+					evict(referenceMapping.getReferenceDescriptor(), primaryKey, true);
+				}
+			}
+		}
+	}
+}
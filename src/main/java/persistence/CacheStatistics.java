@@ -0,0 +1,99 @@
+package persistence;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.persistence.jpa.JpaHelper;
+
+/*
+ * Hit, miss and eviction counters of the shared cache, one instance per
+ * session and entity, updated by LruIdentityMap and LfuIdentityMap. As with
+ * QueryStatistics, the session is that of a persistence unit, so that two
+ * units never share their counters, and its statistics are removed when it
+ * logs out.
+ */
+public class CacheStatistics {
+	// By session name, then by entity name
+	private static final ConcurrentMap<String, ConcurrentMap<String, CacheStatistics>> REGISTRY =
+			new ConcurrentHashMap<>();
+
+	private final String sessionName;
+	private final String entityName;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	private CacheStatistics(String sessionName, String entityName) {
+		this.sessionName = sessionName;
+		this.entityName = entityName;
+	}
+
+	public static CacheStatistics forEntity(String sessionName, String entityName) {
+		return entities(sessionName).computeIfAbsent(entityName, entity -> new CacheStatistics(sessionName, entity));
+	}
+
+	public static Map<String, CacheStatistics> all(String sessionName) {
+		return Collections.unmodifiableMap(entities(sessionName));
+	}
+
+	public static Map<String, CacheStatistics> all(EntityManagerFactory emf) {
+		return all(JpaHelper.getServerSession(emf).getName());
+	}
+
+	public static void remove(String sessionName) {
+		REGISTRY.remove(sessionName);
+	}
+
+	private static ConcurrentMap<String, CacheStatistics> entities(String sessionName) {
+		return REGISTRY.computeIfAbsent(sessionName, session -> new ConcurrentHashMap<>());
+	}
+
+	public String getSessionName() {
+		return sessionName;
+	}
+
+	public String getEntityName() {
+		return entityName;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public double getHitRatio() {
+		long hits = getHits();
+		long total = hits + getMisses();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	void recordHit() {
+		hits.increment();
+	}
+
+	void recordMiss() {
+		misses.increment();
+	}
+
+	void recordEvictions(int count) {
+		evictions.add(count);
+	}
+
+	@Override
+	public String toString() {
+		return "CacheStatistics [sessionName=" + sessionName + ", entityName=" + entityName + ", hits=" + getHits()
+				+ ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+	}
+}
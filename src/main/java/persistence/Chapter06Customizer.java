@@ -0,0 +1,208 @@
+package persistence;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.eclipse.persistence.config.SessionCustomizer;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.descriptors.changetracking.AttributeChangeTrackingPolicy;
+import org.eclipse.persistence.descriptors.changetracking.ChangeTracker;
+import org.eclipse.persistence.descriptors.changetracking.DeferredChangeDetectionPolicy;
+import org.eclipse.persistence.logging.SessionLog;
+import org.eclipse.persistence.sequencing.TableSequence;
+import org.eclipse.persistence.sessions.DatabaseLogin;
+import org.eclipse.persistence.sessions.JNDIConnector;
+import org.eclipse.persistence.sessions.Session;
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+
+/*
+ * Registered in persistence.xml through the eclipselink.session.customizer
+ * property, for both persistence units.
+ */
+public class Chapter06Customizer implements SessionCustomizer {
+	public static final String SEQUENCE_BLOCK_SIZE = "chapter06.sequence.block-size";
+	// POOLED, the default, gives every entity its PooledSequence; TABLE goes
+	// back to the single SEQ_GEN row of EclipseLink's table generator, which
+	// every entity shares, reserved in the transaction of the insert
+	public static final String SEQUENCE_GENERATOR = "chapter06.sequence.generator";
+	// Followed by the entity name, e.g. chapter06.cache.eviction.Customer = LRU;
+	// the capacity is set with the standard eclipselink.cache.size.<entity>
+	public static final String CACHE_EVICTION = "chapter06.cache.eviction";
+	// ATTRIBUTE records the attributes as they are set, so that the commit
+	// only looks at the entities changed; DEFERRED compares every managed
+	// entity with a copy taken when it was read. Followed by the entity name,
+	// e.g. chapter06.change-tracking.Customer = ATTRIBUTE, or alone, for all
+	// the entities. Without it, EclipseLink tracks the attributes of the
+	// entities woven and compares the others
+	public static final String CHANGE_TRACKING = "chapter06.change-tracking";
+
+	// Setting the maximum size installs a PooledDataSource in place of the
+	// connections opened by EclipseLink, configured by the other properties
+	public static final String POOL_MAX_SIZE = "chapter06.pool.max-size";
+	public static final String POOL_MIN_SIZE = "chapter06.pool.min-size";
+	public static final String POOL_ACQUIRE_TIMEOUT = "chapter06.pool.acquire-timeout";
+	public static final String POOL_LEAK_THRESHOLD = "chapter06.pool.leak-threshold";
+	public static final String POOL_STATEMENT_CACHE_SIZE = "chapter06.pool.statement-cache-size";
+
+	// Setting enabled to true installs a QueryStatisticsProfiler; jmx to true
+	// registers the QueryStatistics in the platform MBeanServer as well
+	public static final String STATISTICS_ENABLED = "chapter06.statistics.enabled";
+	public static final String STATISTICS_SLOW_QUERY_THRESHOLD = "chapter06.statistics.slow-query-threshold";
+	public static final String STATISTICS_JMX = "chapter06.statistics.jmx";
+
+	// Setting validation to true checks the schema against the entities at
+	// login, see SchemaValidator
+	public static final String SCHEMA_VALIDATION = "chapter06.schema.validation";
+
+	// One SEQUENCE row per entity, so that inserts of different entities
+	// never contend on the same row
+	public static final String[] SEQUENCES = { "ADDRESS_SEQ", "CUSTOMER_SEQ", "BOOK_SEQ", "CD_SEQ" };
+
+	private static final int DEFAULT_BLOCK_SIZE = 50;
+
+	@Override
+	public void customize(Session session) throws Exception {
+		addSequences(session);
+
+		if (session.getProperty(POOL_MAX_SIZE) != null) {
+			installPool(session);
+		}
+
+		if (booleanProperty(session, STATISTICS_ENABLED)) {
+			session.setProfiler(new QueryStatisticsProfiler(intProperty(session, STATISTICS_SLOW_QUERY_THRESHOLD,
+					(int) QueryStatisticsProfiler.DEFAULT_SLOW_QUERY_MILLIS)));
+			if (booleanProperty(session, STATISTICS_JMX)) {
+				QueryStatistics.registerMBeans(session.getName());
+			}
+			session.getEventManager().addListener(new SessionEventAdapter() {
+				@Override
+				public void postLogout(SessionEvent event) {
+					QueryStatistics.remove(event.getSession().getName());
+				}
+			});
+		}
+
+		if (booleanProperty(session, SCHEMA_VALIDATION)) {
+			session.getEventManager().addListener(new SchemaValidator());
+		}
+
+		boolean cacheStatistics = false;
+		for (ClassDescriptor descriptor : session.getDescriptors().values()) {
+			Object eviction = session.getProperty(CACHE_EVICTION + "." + descriptor.getAlias());
+			if ("LRU".equals(eviction)) {
+				descriptor.setIdentityMapClass(LruIdentityMap.class);
+				cacheStatistics = true;
+			} else if ("LFU".equals(eviction)) {
+				descriptor.setIdentityMapClass(LfuIdentityMap.class);
+				cacheStatistics = true;
+			} else if (eviction != null) {
+				throw new IllegalArgumentException("Unknown eviction policy for " + descriptor.getAlias() + ": " + eviction);
+			}
+			setChangeTracking(session, descriptor);
+		}
+		// Recorded by LruIdentityMap and LfuIdentityMap
+		if (cacheStatistics) {
+			session.getEventManager().addListener(new SessionEventAdapter() {
+				@Override
+				public void postLogout(SessionEvent event) {
+					CacheStatistics.remove(event.getSession().getName());
+				}
+			});
+		}
+	}
+
+	private static void addSequences(Session session) {
+		int defaultBlockSize = intProperty(session, SEQUENCE_BLOCK_SIZE, DEFAULT_BLOCK_SIZE);
+		Object generator = session.getProperty(SEQUENCE_GENERATOR);
+		if ("TABLE".equals(generator)) {
+			session.getLogin().addSequence(new TableSequence(PooledSequence.LEGACY_SEQUENCE, defaultBlockSize));
+			for (ClassDescriptor descriptor : session.getDescriptors().values()) {
+				if (descriptor.usesSequenceNumbers()) {
+					descriptor.setSequenceNumberName(PooledSequence.LEGACY_SEQUENCE);
+				}
+			}
+			return;
+		}
+		if (generator != null && !"POOLED".equals(generator)) {
+			throw new IllegalArgumentException("Unknown sequence generator: " + generator);
+		}
+
+		Map<String, PooledSequence> sequences = new HashMap<>();
+		for (String sequence : SEQUENCES) {
+			// The block size can be overridden per sequence, e.g.
+			// chapter06.sequence.block-size.CUSTOMER_SEQ = 500
+			int blockSize = intProperty(session, SEQUENCE_BLOCK_SIZE + "." + sequence, defaultBlockSize);
+			PooledSequence pooledSequence = new PooledSequence(sequence, blockSize);
+			sequences.put(sequence, pooledSequence);
+			session.getLogin().addSequence(pooledSequence);
+		}
+		// So that each sequence starts past the ids its tables already hold
+		for (ClassDescriptor descriptor : session.getDescriptors().values()) {
+			PooledSequence sequence = sequences.get(descriptor.getSequenceNumberName());
+			if (sequence != null && descriptor.getSequenceNumberField() != null) {
+				sequence.addIdColumn(descriptor.getTableName(), descriptor.getSequenceNumberField().getName());
+			}
+		}
+	}
+
+	private static void setChangeTracking(Session session, ClassDescriptor descriptor) {
+		Object changeTracking = session.getProperty(CHANGE_TRACKING + "." + descriptor.getAlias());
+		if (changeTracking == null) {
+			changeTracking = session.getProperty(CHANGE_TRACKING);
+		}
+		if ("ATTRIBUTE".equals(changeTracking)) {
+			// The setters of the entity notify the changes once woven, see the
+			// static-weave execution of the pom
+			if (ChangeTracker.class.isAssignableFrom(descriptor.getJavaClass())) {
+				descriptor.setObjectChangePolicy(new AttributeChangeTrackingPolicy());
+			} else {
+				session.getSessionLog().log(SessionLog.WARNING, SessionLog.METADATA, "Attribute change tracking needs "
+						+ descriptor.getJavaClassName() + " to be woven; its changes are found by comparison", null, false);
+				descriptor.setObjectChangePolicy(new DeferredChangeDetectionPolicy());
+			}
+		} else if ("DEFERRED".equals(changeTracking)) {
+			descriptor.setObjectChangePolicy(new DeferredChangeDetectionPolicy());
+		} else if (changeTracking != null) {
+			throw new IllegalArgumentException(
+					"Unknown change tracking for " + descriptor.getAlias() + ": " + changeTracking);
+		}
+	}
+
+	private static void installPool(Session session) {
+		// The login only holds the password encrypted, so the connection settings
+		// are read from the persistence unit properties
+		DatabaseLogin login = (DatabaseLogin) session.getDatasourceLogin();
+		PooledDataSource dataSource = new PooledDataSource((String) session.getProperty(PersistenceUnitProperties.JDBC_URL),
+				(String) session.getProperty(PersistenceUnitProperties.JDBC_USER),
+				(String) session.getProperty(PersistenceUnitProperties.JDBC_PASSWORD));
+		dataSource.setMaxSize(intProperty(session, POOL_MAX_SIZE, PooledDataSource.DEFAULT_MAX_SIZE));
+		dataSource.setMinSize(intProperty(session, POOL_MIN_SIZE, PooledDataSource.DEFAULT_MIN_SIZE));
+		dataSource.setAcquireTimeoutMillis(
+				intProperty(session, POOL_ACQUIRE_TIMEOUT, (int) PooledDataSource.DEFAULT_ACQUIRE_TIMEOUT_MILLIS));
+		dataSource.setLeakThresholdMillis(intProperty(session, POOL_LEAK_THRESHOLD, 0));
+		dataSource.setStatementCacheSize(
+				intProperty(session, POOL_STATEMENT_CACHE_SIZE, PooledDataSource.DEFAULT_STATEMENT_CACHE_SIZE));
+		dataSource.setLog(session.getSessionLog());
+
+		login.setConnector(new JNDIConnector(dataSource));
+		login.setUsesExternalConnectionPooling(true);
+		session.getEventManager().addListener(new SessionEventAdapter() {
+			@Override
+			public void postLogout(SessionEvent event) {
+				dataSource.close();
+			}
+		});
+	}
+
+	static int intProperty(Session session, String name, int defaultValue) {
+		Object value = session.getProperty(name);
+		return value == null ? defaultValue : Integer.parseInt(value.toString().trim());
+	}
+
+	static boolean booleanProperty(Session session, String name) {
+		Object value = session.getProperty(name);
+		return value != null && Boolean.parseBoolean(value.toString().trim());
+	}
+}
@@ -0,0 +1,41 @@
+package persistence;
+
+import javax.persistence.EntityManager;
+
+import persistence.ColumnarResult.Type;
+
+/*
+ * A read-only SQL query, typically a GROUP BY report, whose result is
+ * returned in a ColumnarResult instead of a List<Object[]>: the numbers stay
+ * primitive and the strings of a DICTIONARY column are stored once, so that
+ * reading millions of rows allocates neither an Object[] nor boxed numbers
+ * per row. The query runs like a DtoQuery.
+ */
+public class ColumnarQuery {
+	private final String sql;
+	private final Type[] types;
+
+	// One type per column of the SELECT clause, in order
+	public ColumnarQuery(String sql, Type... types) {
+		if (types.length == 0) {
+			throw new IllegalArgumentException("At least one column type is required");
+		}
+		this.sql = sql;
+		this.types = types.clone();
+	}
+
+	public String getSql() {
+		return sql;
+	}
+
+	// The parameters are bound to the ? of the SQL, in order
+	public ColumnarResult getResult(EntityManager em, Object... parameters) {
+		ColumnarResult result = new ColumnarResult(types);
+		new DtoQuery<Void>(sql, resultSet -> {
+			result.append(resultSet);
+			return null;
+		}).forEach(em, row -> {
+		}, parameters);
+		return result;
+	}
+}
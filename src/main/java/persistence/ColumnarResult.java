@@ -0,0 +1,155 @@
+package persistence;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * The rows of a ColumnarQuery, stored column by column in primitive arrays:
+ * an INT column in an int[], a LONG column in a long[], and a DICTIONARY
+ * column as an int[] of codes into an array of its distinct strings, e.g.
+ * the countries of a report. A row costs no allocation besides what the
+ * JDBC driver does. SQL NULL is read as 0, and as the code -1 in a
+ * DICTIONARY column.
+ * The arrays returned are the buffers themselves: they may be longer than
+ * the number of rows, and are not to be modified.
+ */
+public class ColumnarResult {
+	public enum Type {
+		INT, LONG, DICTIONARY
+	}
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final Type[] types;
+	private final int[][] ints;
+	private final long[][] longs;
+	private final Dictionary[] dictionaries;
+	private int rowCount;
+
+	ColumnarResult(Type[] types) {
+		this.types = types;
+		this.ints = new int[types.length][];
+		this.longs = new long[types.length][];
+		this.dictionaries = new Dictionary[types.length];
+		for (int column = 0; column < types.length; column++) {
+			if (types[column] == Type.LONG) {
+				longs[column] = new long[INITIAL_CAPACITY];
+			} else {
+				ints[column] = new int[INITIAL_CAPACITY];
+			}
+			if (types[column] == Type.DICTIONARY) {
+				dictionaries[column] = new Dictionary();
+			}
+		}
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public int getColumnCount() {
+		return types.length;
+	}
+
+	public Type getType(int column) {
+		return types[column];
+	}
+
+	// Columns are numbered from 0, unlike in the ResultSet
+	public int[] getInts(int column) {
+		check(column, Type.INT);
+		return ints[column];
+	}
+
+	public long[] getLongs(int column) {
+		check(column, Type.LONG);
+		return longs[column];
+	}
+
+	public int[] getCodes(int column) {
+		check(column, Type.DICTIONARY);
+		return ints[column];
+	}
+
+	// The distinct values of a DICTIONARY column, indexed by their codes
+	public String[] getDictionary(int column) {
+		check(column, Type.DICTIONARY);
+		return dictionaries[column].values();
+	}
+
+	// The value of a DICTIONARY column, null for SQL NULL
+	public String getString(int column, int row) {
+		int code = getCodes(column)[row];
+		return code < 0 ? null : dictionaries[column].values[code];
+	}
+
+	void append(ResultSet resultSet) throws SQLException {
+		if (rowCount == capacity()) {
+			grow();
+		}
+		for (int column = 0; column < types.length; column++) {
+			switch (types[column]) {
+			case INT:
+				ints[column][rowCount] = resultSet.getInt(column + 1);
+				break;
+			case LONG:
+				longs[column][rowCount] = resultSet.getLong(column + 1);
+				break;
+			default:
+				ints[column][rowCount] = dictionaries[column].encode(resultSet.getString(column + 1));
+				break;
+			}
+		}
+		rowCount++;
+	}
+
+	private int capacity() {
+		return types[0] == Type.LONG ? longs[0].length : ints[0].length;
+	}
+
+	private void grow() {
+		int capacity = capacity() * 2;
+		for (int column = 0; column < types.length; column++) {
+			if (types[column] == Type.LONG) {
+				longs[column] = Arrays.copyOf(longs[column], capacity);
+			} else {
+				ints[column] = Arrays.copyOf(ints[column], capacity);
+			}
+		}
+	}
+
+	private void check(int column, Type type) {
+		if (types[column] != type) {
+			throw new IllegalArgumentException("Column " + column + " is " + types[column] + ", not " + type);
+		}
+	}
+
+	private static class Dictionary {
+		// The codes are boxed once, when a value is first seen
+		private final Map<String, Integer> codes = new HashMap<>();
+		private String[] values = new String[16];
+
+		private int encode(String value) {
+			if (value == null) {
+				return -1;
+			}
+			Integer code = codes.get(value);
+			if (code == null) {
+				code = codes.size();
+				if (code == values.length) {
+					values = Arrays.copyOf(values, code * 2);
+				}
+				values[code] = value;
+				codes.put(value, code);
+			}
+			return code;
+		}
+
+		private String[] values() {
+			return Arrays.copyOf(values, codes.size());
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package persistence;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.persistence.jpa.JpaHelper;
+
+/*
+ * Optimistic lock conflict counters, one instance per session and entity,
+ * updated by OptimisticRetryExecutor. A conflict is counted for every failed
+ * attempt; it is counted as exhausted as well when it was the last attempt
+ * allowed. As with QueryStatistics, the session is that of a persistence
+ * unit, so that two units never share their counters.
+ */
+public class ConflictStatistics {
+	// By session name, then by entity name
+	private static final ConcurrentMap<String, ConcurrentMap<String, ConflictStatistics>> REGISTRY =
+			new ConcurrentHashMap<>();
+
+	private final String sessionName;
+	private final String entityName;
+	private final LongAdder conflicts = new LongAdder();
+	private final LongAdder exhausted = new LongAdder();
+
+	private ConflictStatistics(String sessionName, String entityName) {
+		this.sessionName = sessionName;
+		this.entityName = entityName;
+	}
+
+	public static ConflictStatistics forEntity(String sessionName, String entityName) {
+		return entities(sessionName).computeIfAbsent(entityName, entity -> new ConflictStatistics(sessionName, entity));
+	}
+
+	public static Map<String, ConflictStatistics> all(String sessionName) {
+		return Collections.unmodifiableMap(entities(sessionName));
+	}
+
+	public static Map<String, ConflictStatistics> all(EntityManagerFactory emf) {
+		return all(JpaHelper.getServerSession(emf).getName());
+	}
+
+	private static ConcurrentMap<String, ConflictStatistics> entities(String sessionName) {
+		return REGISTRY.computeIfAbsent(sessionName, session -> new ConcurrentHashMap<>());
+	}
+
+	public String getSessionName() {
+		return sessionName;
+	}
+
+	public String getEntityName() {
+		return entityName;
+	}
+
+	public long getConflicts() {
+		return conflicts.sum();
+	}
+
+	public long getExhausted() {
+		return exhausted.sum();
+	}
+
+	void recordConflict() {
+		conflicts.increment();
+	}
+
+	void recordExhausted() {
+		exhausted.increment();
+	}
+
+	@Override
+	public String toString() {
+		return "ConflictStatistics [sessionName=" + sessionName + ", entityName=" + entityName + ", conflicts="
+				+ getConflicts() + ", exhausted=" + getExhausted() + "]";
+	}
+}
@@ -0,0 +1,324 @@
+package persistence;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaQuery;
+
+import org.eclipse.persistence.expressions.Expression;
+import org.eclipse.persistence.expressions.ExpressionBuilder;
+import org.eclipse.persistence.internal.expressions.CompoundExpression;
+import org.eclipse.persistence.internal.expressions.ConstantExpression;
+import org.eclipse.persistence.internal.expressions.FunctionExpression;
+import org.eclipse.persistence.internal.expressions.ParameterExpression;
+import org.eclipse.persistence.internal.expressions.QueryKeyExpression;
+import org.eclipse.persistence.internal.jpa.querydef.CriteriaQueryImpl;
+import org.eclipse.persistence.internal.queries.ReportItem;
+import org.eclipse.persistence.jpa.JpaEntityManager;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.queries.DatabaseQuery;
+import org.eclipse.persistence.queries.ObjectLevelReadQuery;
+import org.eclipse.persistence.queries.ReportQuery;
+import org.eclipse.persistence.sessions.Session;
+
+/*
+ * Reuses the SQL generated for criteria queries of the same shape.
+ * em.createQuery(criteriaQuery) gives a new EclipseLink query every time, and
+ * the query is prepared again, i.e. its SQL is generated again, on every
+ * execution. Here the literals of the WHERE clause are replaced by
+ * parameters (p0, p1, ... in the order they appear), the query with the
+ * parameters is registered with the factory as a named query, and the
+ * queries with the same shape (same entity, selection, ordering, and WHERE
+ * clause apart from the values of its literals) are created from that named
+ * query: EclipseLink prepares it once, and as the values are bound, the SQL
+ * is the same for all of them, so the PreparedStatement is reused from the
+ * statement cache of the PooledDataSource as well.
+ * At most maxSize shapes are kept, the least recently used one is dropped.
+ * Queries with fetch joins or subqueries are not cached, they are created
+ * as usual and counted as bypassed.
+ */
+public class CriteriaQueryCache {
+	public static final int DEFAULT_MAX_SIZE = 256;
+
+	private static final AtomicLong NAMES = new AtomicLong();
+
+	private final EntityManagerFactory emf;
+	private final Session session;
+	private final int maxSize;
+	private final Map<String, Shape> shapes;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder bypasses = new LongAdder();
+
+	public CriteriaQueryCache(EntityManagerFactory emf) {
+		this(emf, DEFAULT_MAX_SIZE);
+	}
+
+	public CriteriaQueryCache(EntityManagerFactory emf, int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+		}
+		this.emf = emf;
+		this.session = JpaHelper.getServerSession(emf);
+		this.maxSize = maxSize;
+		this.shapes = new LinkedHashMap<String, Shape>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Shape> eldest) {
+				if (size() > CriteriaQueryCache.this.maxSize) {
+					session.removeQuery(eldest.getValue().name);
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/*
+	 * Same as em.createQuery(criteriaQuery). The parameters of the criteria
+	 * query, if any, are still to be set on the query returned.
+	 */
+	public <T> TypedQuery<T> createQuery(EntityManager em, CriteriaQuery<T> criteriaQuery) {
+		DatabaseQuery query = ((CriteriaQueryImpl<T>) criteriaQuery).translate();
+		Normalizer normalizer = new Normalizer();
+		String key = normalizer.shapeOf(query);
+		if (key == null) {
+			bypasses.increment();
+			return em.createQuery(criteriaQuery);
+		}
+
+		TypedQuery<T> typedQuery;
+		synchronized (shapes) {
+			typedQuery = createNamedQuery(em, shapes.get(key));
+		}
+		if (typedQuery == null) {
+			misses.increment();
+			Shape shape = register(em, query, normalizer);
+			synchronized (shapes) {
+				Shape existing = shapes.putIfAbsent(key, shape);
+				if (existing != null) {
+					session.removeQuery(shape.name);
+					shape = existing;
+				}
+				typedQuery = createNamedQuery(em, shape);
+			}
+		} else {
+			hits.increment();
+		}
+
+		for (int i = 0; i < normalizer.values.size(); i++) {
+			typedQuery.setParameter(parameterName(i), normalizer.values.get(i));
+		}
+		return typedQuery;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getBypasses() {
+		return bypasses.sum();
+	}
+
+	// Over the queries that could be cached
+	public double getHitRate() {
+		long hits = getHits();
+		long total = hits + getMisses();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	public int getSize() {
+		synchronized (shapes) {
+			return shapes.size();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public void clear() {
+		synchronized (shapes) {
+			for (Shape shape : shapes.values()) {
+				session.removeQuery(shape.name);
+			}
+			shapes.clear();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("CriteriaQueryCache [size=%d, maxSize=%d, hits=%d, misses=%d, bypasses=%d, hitRate=%.3f]",
+				getSize(), maxSize, getHits(), getMisses(), getBypasses(), getHitRate());
+	}
+
+	/*
+	 * The WHERE clause, and the other expressions of the query, are copied
+	 * with their literals replaced by parameters: the copies share one
+	 * ExpressionBuilder, and the criteria query is left untouched.
+	 */
+	private Shape register(EntityManager em, DatabaseQuery query, Normalizer normalizer) {
+		Map<Expression, Expression> copies = new IdentityHashMap<>(normalizer.parameters);
+		ObjectLevelReadQuery readQuery = (ObjectLevelReadQuery) query;
+		ExpressionBuilder builder = readQuery.getExpressionBuilder();
+		if (query.getSelectionCriteria() != null) {
+			query.setSelectionCriteria(query.getSelectionCriteria().copiedVersionFrom(copies));
+		}
+		readQuery.setOrderByExpressions(copyAll(readQuery.getOrderByExpressions(), copies));
+		if (query.isReportQuery()) {
+			ReportQuery reportQuery = (ReportQuery) query;
+			for (ReportItem item : reportQuery.getItems()) {
+				if (item.getAttributeExpression() != null) {
+					item.setAttributeExpression(item.getAttributeExpression().copiedVersionFrom(copies));
+				}
+			}
+			reportQuery.setGroupByExpressions(copyAll(reportQuery.getGroupByExpressions(), copies));
+			if (reportQuery.getHavingExpression() != null) {
+				reportQuery.setHavingExpression(reportQuery.getHavingExpression().copiedVersionFrom(copies));
+			}
+		}
+		if (builder != null && copies.containsKey(builder)) {
+			readQuery.setExpressionBuilder((ExpressionBuilder) copies.get(builder));
+		}
+		for (int i = 0; i < normalizer.values.size(); i++) {
+			query.addArgument(parameterName(i), normalizer.values.get(i).getClass());
+		}
+
+		String name = "CriteriaQueryCache." + NAMES.incrementAndGet();
+		emf.addNamedQuery(name, em.unwrap(JpaEntityManager.class).createQuery(query));
+		return new Shape(name);
+	}
+
+	/*
+	 * Called with the lock held: a shape is dropped with its named query, see
+	 * removeEldestEntry, so the query is created before another thread can
+	 * evict the shape. null if there is no shape.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> TypedQuery<T> createNamedQuery(EntityManager em, Shape shape) {
+		return shape == null ? null : (TypedQuery<T>) em.createNamedQuery(shape.name);
+	}
+
+	private static List<Expression> copyAll(List<Expression> expressions, Map<Expression, Expression> copies) {
+		List<Expression> copied = new ArrayList<>(expressions.size());
+		for (Expression expression : expressions) {
+			copied.add(expression.copiedVersionFrom(copies));
+		}
+		return copied;
+	}
+
+	private static String parameterName(int index) {
+		return "p" + index;
+	}
+
+	private static class Shape {
+		private final String name;
+
+		private Shape(String name) {
+			this.name = name;
+		}
+	}
+
+	/*
+	 * Computes the shape of a query, collecting the literals of its WHERE
+	 * clause and the parameters replacing them. The other expressions go into
+	 * the shape as they are, literals included.
+	 */
+	private static class Normalizer {
+		private final Map<Expression, Expression> parameters = new IdentityHashMap<>();
+		private final List<Object> values = new ArrayList<>();
+		private boolean cacheable = true;
+
+		// null if the query cannot be cached
+		private String shapeOf(DatabaseQuery query) {
+			if (!query.isObjectLevelReadQuery()) {
+				return null;
+			}
+			ObjectLevelReadQuery readQuery = (ObjectLevelReadQuery) query;
+			if (readQuery.hasJoining() || readQuery.hasNonFetchJoinedAttributeExpressions()) {
+				return null;
+			}
+			StringBuilder key = new StringBuilder();
+			key.append(query.getClass().getSimpleName()).append(' ').append(query.getReferenceClassName())
+					.append(" distinct=").append(readQuery.getDistinctState()).append(" where ");
+			append(query.getSelectionCriteria(), key);
+			key.append(" order by ").append(readQuery.getOrderByExpressions());
+			if (query.isReportQuery()) {
+				ReportQuery reportQuery = (ReportQuery) query;
+				for (ReportItem item : reportQuery.getItems()) {
+					if (item.getJoinedAttributeManagerInternal() != null
+							&& item.getJoinedAttributeManagerInternal().hasJoinedExpressions()) {
+						return null;
+					}
+					key.append(" item ").append(item.getResultType()).append(' ')
+							.append(item.getAttributeExpression());
+				}
+				key.append(" group by ").append(reportQuery.getGroupByExpressions()).append(" having ")
+						.append(reportQuery.getHavingExpression()).append(" return ")
+						.append(reportQuery.getReturnType());
+			}
+			return cacheable ? key.toString() : null;
+		}
+
+		private void append(Expression expression, StringBuilder key) {
+			if (expression == null) {
+				key.append("null");
+			} else if (expression instanceof ConstantExpression) {
+				ConstantExpression constant = (ConstantExpression) expression;
+				Expression parameter = parameters.get(constant);
+				if (parameter == null) {
+					if (constant.getValue() == null) {
+						key.append("NULL");
+						return;
+					}
+					parameter = new ParameterExpression(parameterName(values.size()), constant.getLocalBase(),
+							constant.getValue().getClass());
+					parameters.put(constant, parameter);
+					values.add(constant.getValue());
+				}
+				key.append('?').append(constant.getValue().getClass().getSimpleName());
+			} else if (expression instanceof CompoundExpression) {
+				CompoundExpression compound = (CompoundExpression) expression;
+				key.append(compound.getOperator().getSelector()).append('(');
+				append(compound.getFirstChild(), key);
+				key.append(',');
+				append(compound.getSecondChild(), key);
+				key.append(')');
+			} else if (expression instanceof FunctionExpression) {
+				FunctionExpression function = (FunctionExpression) expression;
+				key.append(function.getOperator().getSelector()).append('(');
+				for (Object child : function.getChildren()) {
+					append((Expression) child, key);
+					key.append(',');
+				}
+				key.append(')');
+			} else if (expression instanceof QueryKeyExpression) {
+				QueryKeyExpression queryKey = (QueryKeyExpression) expression;
+				append(queryKey.getBaseExpression(), key);
+				key.append(queryKey.shouldUseOuterJoin() ? ".(+)" : ".").append(queryKey.getName());
+			} else if (expression instanceof ExpressionBuilder) {
+				key.append("builder:").append(((ExpressionBuilder) expression).getQueryClass());
+			} else if (expression.isSubSelectExpression()) {
+				// The subquery shares expressions with the query, a copy would not
+				cacheable = false;
+			} else {
+				// Parameters, fields and anything else: the literals, if any,
+				// are part of the shape
+				key.append(expression.getClass().getSimpleName()).append('[').append(expression).append(']');
+			}
+		}
+	}
+}
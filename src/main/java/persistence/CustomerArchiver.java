@@ -0,0 +1,221 @@
+package persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.mappings.OneToOneMapping;
+import org.eclipse.persistence.sessions.Session;
+
+import model.Address;
+import model.Customer;
+
+/*
+ * Moves customers to customer_archive, and their addresses to
+ * address_archive, chunkSize customers at a time. Each chunk is one
+ * transaction of four set-based statements:
+ *   INSERT INTO customer_archive (...) SELECT ... FROM CUSTOMER WHERE ID IN (...)
+ *   INSERT INTO address_archive (...) SELECT ... FROM ADDRESS WHERE ID IN (...)
+ *   DELETE FROM CUSTOMER WHERE ID IN (...)
+ *   DELETE FROM ADDRESS WHERE ID IN (...)
+ * so an archived customer keeps its address (customer_archive.address_fk
+ * refers to address_archive) and no ADDRESS row is left without its customer.
+ * The chunk is selected in the same transaction, and its customers and
+ * addresses are locked before they are moved; a customer without an address
+ * is archived alone.
+ * A chunk is either fully archived or not at all, and the archived rows no
+ * longer match, so after a crash the same call simply carries on with the
+ * customers not archived yet.
+ * The statements bypass EclipseLink, so after each chunk the customers and
+ * addresses are evicted from the shared cache, together with the cached
+ * query results of Customer.
+ * See create_customer_archive.sql for the archive tables.
+ */
+public class CustomerArchiver {
+	public static final int DEFAULT_CHUNK_SIZE = 1000;
+	public static final String CUSTOMER_ARCHIVE = "customer_archive";
+	public static final String ADDRESS_ARCHIVE = "address_archive";
+
+	private final EntityManagerFactory emf;
+	private final int chunkSize;
+	private final CacheCoordinator cacheCoordinator;
+	// The table name followed by WHERE <id column>, ready for IN (...)
+	private final String customerTable;
+	private final String customerColumns;
+	private final String addressTable;
+	private final String addressColumns;
+	// SELECT <id>, <address foreign key> FROM <customer table> WHERE <id>
+	private final String lockCustomers;
+	private final String lockAddresses;
+
+	public CustomerArchiver(EntityManagerFactory emf) {
+		this(emf, DEFAULT_CHUNK_SIZE);
+	}
+
+	public CustomerArchiver(EntityManagerFactory emf, int chunkSize) {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+		}
+		this.emf = emf;
+		this.chunkSize = chunkSize;
+		this.cacheCoordinator = new CacheCoordinator(emf);
+		Session session = JpaHelper.getServerSession(emf);
+		ClassDescriptor customer = session.getDescriptor(Customer.class);
+		ClassDescriptor address = session.getDescriptor(Address.class);
+		this.customerTable = customer.getTableName() + " WHERE " + idColumn(customer);
+		this.customerColumns = columns(customer);
+		this.addressTable = address.getTableName() + " WHERE " + idColumn(address);
+		this.addressColumns = columns(address);
+		String addressForeignKey = ((OneToOneMapping) customer.getMappingForAttributeName("address"))
+				.getForeignKeyFields().get(0).getName();
+		this.lockCustomers = "SELECT " + idColumn(customer) + ", " + addressForeignKey + " FROM " + customerTable;
+		this.lockAddresses = "SELECT " + idColumn(address) + " FROM " + addressTable;
+	}
+
+	/*
+	 * Archives the customers matching a JPQL condition on c and its address a,
+	 * such as "c.age > :age" or "a.country = :country". Returns the number of
+	 * customers archived.
+	 */
+	public long archiveWhere(String condition, Map<String, ?> parameters) {
+		EntityManager em = emf.createEntityManager();
+		try {
+			TypedQuery<Object> query = em.createQuery("SELECT c.id FROM Customer c LEFT JOIN c.address a WHERE ("
+					+ condition + ") AND c.id > :lastId ORDER BY c.id", Object.class);
+			parameters.forEach(query::setParameter);
+			query.setMaxResults(chunkSize);
+
+			long count = 0;
+			Object lastId = 0L;
+			Chunk chunk;
+			// Seeking past the last id, rather than always reading the first
+			// chunk, ensures progress if some rows could not be moved
+			while (!(chunk = archive(em, query.setParameter("lastId", lastId))).customerIds.isEmpty()) {
+				count += chunk.archived;
+				lastId = chunk.customerIds.get(chunk.customerIds.size() - 1);
+			}
+			return count;
+		} finally {
+			em.close();
+		}
+	}
+
+	public long archiveWhere(String condition) {
+		return archiveWhere(condition, Collections.emptyMap());
+	}
+
+	// Returns the number of customers archived; unknown emails are ignored
+	public long archiveEmails(Collection<String> emails) {
+		EntityManager em = emf.createEntityManager();
+		try {
+			TypedQuery<Object> query = em.createQuery("SELECT c.id FROM Customer c WHERE c.email IN :emails ORDER BY c.id",
+					Object.class);
+			List<String> remaining = new ArrayList<>(emails);
+			long count = 0;
+			for (int from = 0; from < remaining.size(); from += chunkSize) {
+				List<String> chunk = remaining.subList(from, Math.min(from + chunkSize, remaining.size()));
+				count += archive(em, query.setParameter("emails", chunk)).archived;
+			}
+			return count;
+		} finally {
+			em.close();
+		}
+	}
+
+	/*
+	 * Reads the ids of a chunk of customers with the query and moves them, in
+	 * one transaction. Their rows are locked (SELECT ... FOR UPDATE) before
+	 * their address ids are read, so a customer can neither change address nor
+	 * be deleted or archived by another call until the chunk is moved; a
+	 * customer deleted since the query is left out. The addresses are locked
+	 * too, so their archived copies are their last state. The rows are locked
+	 * with native statements on one table each: H2 cannot lock the rows of a
+	 * join (with MVCC), which a locked JPQL query on c and a would be.
+	 */
+	private Chunk archive(EntityManager em, TypedQuery<Object> query) {
+		EntityTransaction tx = em.getTransaction();
+		List<Object> customerIds;
+		List<Object> lockedIds = new ArrayList<>();
+		List<Object> addressIds = new ArrayList<>();
+		int archived = 0;
+		try {
+			tx.begin();
+			customerIds = query.getResultList();
+			if (!customerIds.isEmpty()) {
+				for (Object row : in(em, lockCustomers, customerIds, " FOR UPDATE").getResultList()) {
+					Object[] ids = (Object[]) row;
+					lockedIds.add(ids[0]);
+					// No address to archive with this customer
+					if (ids[1] != null) {
+						addressIds.add(ids[1]);
+					}
+				}
+			}
+			if (!lockedIds.isEmpty()) {
+				if (!addressIds.isEmpty()) {
+					in(em, lockAddresses, addressIds, " FOR UPDATE").getResultList();
+				}
+				archived = execute(em, "INSERT INTO " + CUSTOMER_ARCHIVE + " (" + customerColumns + ") SELECT "
+						+ customerColumns + " FROM " + customerTable, lockedIds);
+				execute(em, "INSERT INTO " + ADDRESS_ARCHIVE + " (" + addressColumns + ") SELECT " + addressColumns
+						+ " FROM " + addressTable, addressIds);
+				execute(em, "DELETE FROM " + customerTable, lockedIds);
+				execute(em, "DELETE FROM " + addressTable, addressIds);
+			}
+			tx.commit();
+		} finally {
+			if (tx.isActive()) {
+				tx.rollback();
+			}
+			em.clear();
+		}
+
+		cacheCoordinator.evict(Customer.class, lockedIds, true);
+		cacheCoordinator.evict(Address.class, addressIds, false);
+		return new Chunk(customerIds, archived);
+	}
+
+	// Appends IN (?, ..., ?) to the statement; nothing to do without ids
+	private static int execute(EntityManager em, String statement, List<Object> ids) {
+		return ids.isEmpty() ? 0 : in(em, statement, ids, "").executeUpdate();
+	}
+
+	private static Query in(EntityManager em, String statement, List<Object> ids, String suffix) {
+		Query query = em.createNativeQuery(statement + " IN ("
+				+ ids.stream().map(id -> "?").collect(Collectors.joining(", ")) + ")" + suffix);
+		for (int i = 0; i < ids.size(); i++) {
+			query.setParameter(i + 1, ids.get(i));
+		}
+		return query;
+	}
+
+	private static String idColumn(ClassDescriptor descriptor) {
+		return descriptor.getPrimaryKeyFields().get(0).getName();
+	}
+
+	private static String columns(ClassDescriptor descriptor) {
+		return descriptor.getFields().stream().map(field -> field.getName()).collect(Collectors.joining(", "));
+	}
+
+	// The customers read by the query of a chunk, and how many were archived
+	private static class Chunk {
+		private final List<Object> customerIds;
+		private final int archived;
+
+		private Chunk(List<Object> customerIds, int archived) {
+			this.customerIds = customerIds;
+			this.archived = archived;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package persistence;
+
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+
+import model.Customer;
+
+/*
+ * Loads large feeds of customers (and their cascaded addresses). The inserts
+ * are sent in JDBC batches, as configured by eclipselink.jdbc.batch-writing in
+ * persistence.xml. On each flush EclipseLink writes all the Address rows before
+ * all the Customer rows (the foreign key dictates that commit order), so the two
+ * statements end up in separate, homogeneous batches.
+ * Every chunkSize customers the chunk is committed and the persistence context
+ * is cleared, so that memory stays flat regardless of the size of the feed.
+ */
+public class CustomerBulkLoader {
+	public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+	private final EntityManagerFactory emf;
+	private final int chunkSize;
+
+	public CustomerBulkLoader(EntityManagerFactory emf) {
+		this(emf, DEFAULT_CHUNK_SIZE);
+	}
+
+	public CustomerBulkLoader(EntityManagerFactory emf, int chunkSize) {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+		}
+		this.emf = emf;
+		this.chunkSize = chunkSize;
+	}
+
+	/*
+	 * Returns the number of customers loaded. If a chunk fails, it is rolled back
+	 * and the exception is rethrown; the chunks committed before it stay in the
+	 * database.
+	 */
+	public long load(Stream<Customer> customers) {
+		EntityManager em = emf.createEntityManager();
+		EntityTransaction tx = em.getTransaction();
+		long count = 0;
+
+		try {
+			Iterator<Customer> iterator = customers.iterator();
+			tx.begin();
+			while (iterator.hasNext()) {
+				em.persist(iterator.next());
+				if (++count % chunkSize == 0) {
+					tx.commit();
+					em.clear();
+					tx.begin();
+				}
+			}
+			tx.commit();
+			return count;
+		} finally {
+			if (tx.isActive()) {
+				tx.rollback();
+			}
+			em.close();
+		}
+	}
+}
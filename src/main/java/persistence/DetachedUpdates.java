@@ -0,0 +1,175 @@
+package persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.EntityTransaction;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.Query;
+import javax.persistence.metamodel.Attribute.PersistentAttributeType;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.internal.helper.ConversionManager;
+import org.eclipse.persistence.internal.sessions.UnitOfWorkImpl;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.mappings.DatabaseMapping;
+
+/*
+ * Writes a detached entity back with a single
+ * UPDATE ... SET <attributes> WHERE id = ? [AND version = ?], instead of
+ * em.merge, which reads the entity first when it is in neither the
+ * persistence context nor the shared cache (Book, for instance). The state
+ * of the detached entity is trusted: all its basic attributes are written,
+ * whether they changed or not. If the entity has a @Version, the UPDATE only
+ * matches the version the entity was read with, and increments it: a
+ * concurrent change makes it fail with an OptimisticLockException, as the
+ * commit of a merge would. The relationships are not written, their foreign
+ * keys keep their values: reading a lazy relationship that was not loaded
+ * would take a SELECT. Use merge to change them, or for a new entity.
+ * As with PriceRepository, EclipseLink invalidates the shared cache entry of
+ * the entity and the cached query results of the class.
+ */
+public class DetachedUpdates<T> {
+	private final EntityManagerFactory emf;
+	private final Class<T> entityClass;
+	private final String queryName;
+	private final List<DatabaseMapping> mappings = new ArrayList<>();
+	private final DatabaseMapping idMapping;
+	private final DatabaseMapping versionMapping;
+	private final Class<?> versionType;
+
+	public DetachedUpdates(EntityManagerFactory emf, Class<T> entityClass) {
+		EntityType<T> entityType = emf.getMetamodel().entity(entityClass);
+		ClassDescriptor descriptor = JpaHelper.getServerSession(emf).getDescriptor(entityClass);
+		String idName = entityType.getId(entityType.getIdType().getJavaType()).getName();
+		StringBuilder set = new StringBuilder();
+		String versionName = null;
+		Class<?> versionType = null;
+		for (SingularAttribute<? super T, ?> attribute : entityType.getSingularAttributes()) {
+			if (attribute.isVersion()) {
+				versionType = wrapper(attribute.getJavaType());
+				if (!Number.class.isAssignableFrom(versionType)) {
+					throw new IllegalArgumentException(entityType.getName() + " has a non numeric version");
+				}
+				versionName = attribute.getName();
+			} else if (!attribute.isId() && attribute.getPersistentAttributeType() == PersistentAttributeType.BASIC) {
+				set.append(set.length() == 0 ? "" : ", ").append("e.").append(attribute.getName()).append(" = :")
+						.append(attribute.getName());
+				mappings.add(descriptor.getMappingForAttributeName(attribute.getName()));
+			}
+		}
+		String where = " WHERE e." + idName + " = :" + idName;
+		if (versionName != null) {
+			set.append(set.length() == 0 ? "" : ", ").append("e.").append(versionName).append(" = e.")
+					.append(versionName).append(" + 1");
+			where += " AND e." + versionName + " = :" + versionName;
+		}
+		this.emf = emf;
+		this.entityClass = entityClass;
+		// Prepared once, rather than at every update
+		this.queryName = DetachedUpdates.class.getSimpleName() + "." + entityType.getName();
+		EntityManager em = emf.createEntityManager();
+		try {
+			// EclipseLink inlines the parameters of bulk updates by default, which
+			// would make every update a different statement to prepare
+			emf.addNamedQuery(queryName, em.createQuery("UPDATE " + entityType.getName() + " e SET " + set + where)
+					.setHint(QueryHints.BIND_PARAMETERS, HintValues.TRUE));
+		} finally {
+			em.close();
+		}
+		this.idMapping = descriptor.getMappingForAttributeName(idName);
+		this.versionMapping = versionName == null ? null : descriptor.getMappingForAttributeName(versionName);
+		this.versionType = versionType;
+	}
+
+	public Class<T> getEntityClass() {
+		return entityClass;
+	}
+
+	// Runs in a transaction of its own, and increments the version of the
+	// entity once it commits
+	public void update(T entity) {
+		EntityManager em = emf.createEntityManager();
+		EntityTransaction tx = em.getTransaction();
+		try {
+			tx.begin();
+			Object version = update(em, entity);
+			tx.commit();
+			setVersion(entity, version);
+		} finally {
+			if (tx.isActive()) {
+				tx.rollback();
+			}
+			em.close();
+		}
+	}
+
+	/*
+	 * Joins the transaction of the given entity manager, which must be active.
+	 * If the persistence context already holds the entity, the detached one is
+	 * merged into it, which takes no SELECT either. Otherwise the detached
+	 * entity is left as it is, and the version the row now has is returned:
+	 * pass it to setVersion() once the transaction commits. Should the
+	 * transaction roll back instead, the entity keeps the version of the row.
+	 * Returns null for a merged entity, or an entity without @Version.
+	 * Throws an OptimisticLockException if the row changed since the entity was
+	 * read, or was deleted, and an EntityNotFoundException if an entity without
+	 * @Version was deleted. Retrying with the same detached entity fails the
+	 * same way: it has to be read again.
+	 */
+	public Object update(EntityManager em, T entity) {
+		Object id = idMapping.getAttributeValueFromObject(entity);
+		if (id == null) {
+			throw new IllegalArgumentException("The entity has no id; persist it instead");
+		}
+		// Only the persistence context itself is looked up, see PriceRepository
+		UnitOfWorkImpl unitOfWork = em.unwrap(UnitOfWorkImpl.class);
+		Object managed = unitOfWork.getIdentityMapAccessorInstance().getFromLocalIdentityMap(id, entityClass, true,
+				unitOfWork.getDescriptor(entityClass));
+		if (managed != null && em.contains(managed)) {
+			em.merge(entity);
+			return null;
+		}
+
+		Query query = em.createNamedQuery(queryName).setParameter(idMapping.getAttributeName(), id);
+		for (DatabaseMapping mapping : mappings) {
+			query.setParameter(mapping.getAttributeName(), mapping.getAttributeValueFromObject(entity));
+		}
+		Object version = null;
+		if (versionMapping != null) {
+			version = versionMapping.getAttributeValueFromObject(entity);
+			if (version == null) {
+				throw new IllegalArgumentException("The entity has no version; persist it instead");
+			}
+			query.setParameter(versionMapping.getAttributeName(), version);
+		}
+		if (query.executeUpdate() == 0) {
+			if (versionMapping != null) {
+				throw new OptimisticLockException("The entity changed or was deleted since it was read", null, entity);
+			}
+			throw new EntityNotFoundException("No " + entityClass.getSimpleName() + " with id " + id);
+		}
+		if (versionMapping == null) {
+			return null;
+		}
+		return ConversionManager.getDefaultManager().convertObject(((Number) version).longValue() + 1, versionType);
+	}
+
+	// Sets the version returned by update(em, entity); a null one is ignored
+	public void setVersion(T entity, Object version) {
+		if (version != null) {
+			versionMapping.setAttributeValueInObject(entity, version);
+		}
+	}
+
+	private static Class<?> wrapper(Class<?> type) {
+		return type.isPrimitive() ? ConversionManager.getObjectClass(type) : type;
+	}
+}
@@ -0,0 +1,90 @@
+package persistence;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceException;
+
+/*
+ * A read-only SQL query whose rows are turned into DTOs by a RowMapper,
+ * straight from the JDBC ResultSet. Nothing goes through EclipseLink: no
+ * entity is built, registered in the persistence context or cached, and no
+ * intermediate row (DatabaseRecord, Object[]) is allocated, as is the case
+ * even for a JPQL constructor expression.
+ * Within a transaction of the EntityManager, the query runs on its
+ * connection, after a flush, so that it sees the changes of the
+ * transaction; otherwise it runs on a connection of the PooledDataSource.
+ * The statement is prepared by the pool, which caches it.
+ */
+public class DtoQuery<T> {
+	public interface RowMapper<T> {
+		T map(ResultSet resultSet) throws SQLException;
+	}
+
+	private final String sql;
+	private final RowMapper<T> mapper;
+
+	public DtoQuery(String sql, RowMapper<T> mapper) {
+		this.sql = sql;
+		this.mapper = mapper;
+	}
+
+	public String getSql() {
+		return sql;
+	}
+
+	// The parameters are bound to the ? of the SQL, in order
+	public List<T> getResultList(EntityManager em, Object... parameters) {
+		List<T> results = new ArrayList<>();
+		forEach(em, results::add, parameters);
+		return results;
+	}
+
+	// For large results, which are then not held in memory
+	public void forEach(EntityManager em, Consumer<? super T> action, Object... parameters) {
+		try {
+			EntityTransaction tx = em.getTransaction();
+			if (tx.isActive()) {
+				em.flush();
+				run(em.unwrap(Connection.class), action, parameters);
+				return;
+			}
+			PooledDataSource pool = PooledDataSource.of(em.getEntityManagerFactory());
+			if (pool != null) {
+				try (Connection connection = pool.getConnection()) {
+					run(connection, action, parameters);
+				}
+				return;
+			}
+			// Without a pool, the connection is borrowed from EclipseLink
+			tx.begin();
+			try {
+				run(em.unwrap(Connection.class), action, parameters);
+			} finally {
+				tx.rollback();
+			}
+		} catch (SQLException e) {
+			throw new PersistenceException("Could not run " + sql, e);
+		}
+	}
+
+	private void run(Connection connection, Consumer<? super T> action, Object[] parameters) throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement(sql)) {
+			for (int i = 0; i < parameters.length; i++) {
+				statement.setObject(i + 1, parameters[i]);
+			}
+			try (ResultSet resultSet = statement.executeQuery()) {
+				while (resultSet.next()) {
+					action.accept(mapper.map(resultSet));
+				}
+			}
+		}
+	}
+}
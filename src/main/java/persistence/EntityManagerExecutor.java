@@ -0,0 +1,157 @@
+package persistence;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+/*
+ * Runs units of work concurrently, each one with an EntityManager of its own.
+ * On a JDK with virtual threads (21 and later) every task gets a virtual
+ * thread, so that a task blocked on JDBC costs no platform thread; on older
+ * JDKs the tasks run on a fixed pool of platform threads. The virtual thread
+ * executor is looked up reflectively, as the classes are still compiled for
+ * Java 8, which is what the ASM bundled with EclipseLink 2.7 can read.
+ * In both cases at most maxConcurrency tasks run at once: by default the
+ * maximum size of the PooledDataSource of the factory. The fixed pool has
+ * maxConcurrency threads; the virtual threads wait for a permit of a fair
+ * semaphore, so that thousands of them queue here instead of timing out in
+ * the pool (the MySQL driver also pins a virtual thread to its carrier while
+ * it blocks inside its synchronized blocks).
+ */
+public class EntityManagerExecutor implements AutoCloseable {
+	public static final int DEFAULT_MAX_CONCURRENCY = PooledDataSource.DEFAULT_MAX_SIZE;
+
+	private final EntityManagerFactory emf;
+	// Null on the fixed pool, which bounds the concurrency by itself
+	private final Semaphore permits;
+	private final ExecutorService executor;
+
+	public EntityManagerExecutor(EntityManagerFactory emf) {
+		this(emf, defaultMaxConcurrency(emf));
+	}
+
+	public EntityManagerExecutor(EntityManagerFactory emf, int maxConcurrency) {
+		this(emf, maxConcurrency, newVirtualThreadPerTaskExecutor());
+	}
+
+	/*
+	 * perTask starts a thread per task, like the virtual thread executor, and
+	 * is bounded by the semaphore; without it the tasks run on a fixed pool.
+	 */
+	EntityManagerExecutor(EntityManagerFactory emf, int maxConcurrency, ExecutorService perTask) {
+		if (maxConcurrency < 1) {
+			throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+		}
+		this.emf = emf;
+		if (perTask != null) {
+			this.permits = new Semaphore(maxConcurrency, true);
+			this.executor = perTask;
+		} else {
+			AtomicInteger count = new AtomicInteger();
+			this.permits = null;
+			this.executor = Executors.newFixedThreadPool(maxConcurrency, runnable -> {
+				Thread thread = new Thread(runnable, "entity-manager-worker-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	public boolean isVirtual() {
+		return permits != null;
+	}
+
+	/*
+	 * The unit of work manages its own transaction; a transaction it leaves
+	 * active is rolled back, and the EntityManager is closed afterwards.
+	 */
+	public <T> CompletableFuture<T> submit(Function<EntityManager, T> work) {
+		return schedule(() -> {
+			EntityManager em = emf.createEntityManager();
+			try {
+				return work.apply(em);
+			} finally {
+				if (em.getTransaction().isActive()) {
+					em.getTransaction().rollback();
+				}
+				em.close();
+			}
+		});
+	}
+
+	// For tasks that create their own EntityManagers, like OptimisticRetryExecutor
+	public CompletableFuture<Void> submit(Runnable task) {
+		return schedule(() -> {
+			task.run();
+			return null;
+		});
+	}
+
+	/*
+	 * Waits for the submitted tasks to complete; the ones submitted afterwards
+	 * are rejected.
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				// Keep waiting, as the tasks may hold database connections
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private <T> CompletableFuture<T> schedule(Callable<T> task) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		executor.execute(() -> {
+			if (permits != null) {
+				try {
+					permits.acquire();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					future.completeExceptionally(e);
+					return;
+				}
+			}
+			try {
+				future.complete(task.call());
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			} finally {
+				if (permits != null) {
+					permits.release();
+				}
+			}
+		});
+		return future;
+	}
+
+	private static int defaultMaxConcurrency(EntityManagerFactory emf) {
+		PooledDataSource pool = PooledDataSource.of(emf);
+		return pool == null ? DEFAULT_MAX_CONCURRENCY : pool.getMaxSize();
+	}
+
+	// Executors.newVirtualThreadPerTaskExecutor(), or null before JDK 21
+	static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			return null;
+		} catch (InvocationTargetException e) {
+			// A preview feature that is not enabled (JDK 19 and 20)
+			return null;
+		}
+	}
+}
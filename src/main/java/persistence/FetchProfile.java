@@ -0,0 +1,80 @@
+package persistence;
+
+import javax.persistence.Query;
+
+import org.eclipse.persistence.annotations.BatchFetchType;
+import org.eclipse.persistence.config.QueryHints;
+
+/*
+ * Chooses, per query, how the relationships of the returned entities are
+ * loaded, so that listing N customers does not cost 1 + N queries (one for
+ * the customers, one per Address):
+ * - join: the relationship is read in the same SELECT with an outer join
+ * - batch: one more SELECT per batchSize entities, with WHERE id IN (...)
+ * - subselect: one more SELECT for all of them, re-using the original query
+ *   as an EXISTS subselect
+ * Paths are expressed with the alias of the query, e.g. "c.address".
+ */
+public class FetchProfile {
+	public enum Strategy {
+		JOIN, BATCH, SUBSELECT
+	}
+
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	private final Strategy strategy;
+	private final int batchSize;
+	private final String[] paths;
+
+	private FetchProfile(Strategy strategy, int batchSize, String[] paths) {
+		if (paths.length == 0) {
+			throw new IllegalArgumentException("At least one path is required");
+		}
+		this.strategy = strategy;
+		this.batchSize = batchSize;
+		this.paths = paths;
+	}
+
+	public static FetchProfile join(String... paths) {
+		return new FetchProfile(Strategy.JOIN, 0, paths);
+	}
+
+	public static FetchProfile batch(String... paths) {
+		return batch(DEFAULT_BATCH_SIZE, paths);
+	}
+
+	public static FetchProfile batch(int batchSize, String... paths) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+		}
+		return new FetchProfile(Strategy.BATCH, batchSize, paths);
+	}
+
+	public static FetchProfile subselect(String... paths) {
+		return new FetchProfile(Strategy.SUBSELECT, 0, paths);
+	}
+
+	public Strategy getStrategy() {
+		return strategy;
+	}
+
+	public <Q extends Query> Q applyTo(Q query) {
+		for (String path : paths) {
+			switch (strategy) {
+			case JOIN:
+				query.setHint(QueryHints.LEFT_FETCH, path);
+				break;
+			case BATCH:
+				query.setHint(QueryHints.BATCH, path);
+				query.setHint(QueryHints.BATCH_TYPE, BatchFetchType.IN);
+				query.setHint(QueryHints.BATCH_SIZE, batchSize);
+				break;
+			case SUBSELECT:
+				query.setHint(QueryHints.BATCH, path);
+				query.setHint(QueryHints.BATCH_TYPE, BatchFetchType.EXISTS);
+				break;
+			}
+		}
+		return query;
+	}
+}
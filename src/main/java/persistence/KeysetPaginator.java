@@ -0,0 +1,121 @@
+package persistence;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import javax.persistence.metamodel.EntityType;
+
+/*
+ * Pages through the entities of a class ordered by their @Id, seeking with
+ * WHERE e.id > :lastId instead of skipping rows with an OFFSET, so that every
+ * page costs the same index range scan, however deep it is.
+ * The position is handed back to the caller as an opaque continuation token.
+ */
+public class KeysetPaginator<T> {
+	private final EntityManager em;
+	private final Class<T> entityClass;
+	private final String entityName;
+	private final String idName;
+	private final Class<?> idType;
+	private final int pageSize;
+
+	public KeysetPaginator(EntityManager em, Class<T> entityClass, int pageSize) {
+		if (pageSize < 1) {
+			throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+		}
+		EntityType<T> entityType = em.getMetamodel().entity(entityClass);
+		Class<?> idType = entityType.getIdType().getJavaType();
+		if (idType != Long.class && idType != Integer.class && idType != String.class) {
+			throw new IllegalArgumentException("Unsupported id type for keyset pagination: " + idType);
+		}
+		this.em = em;
+		this.entityClass = entityClass;
+		this.entityName = entityType.getName();
+		this.idType = idType;
+		this.idName = entityType.getId(idType).getName();
+		this.pageSize = pageSize;
+	}
+
+	/*
+	 * Returns the first page if token is null, otherwise the page following the
+	 * one that produced the token.
+	 */
+	public Page<T> page(String token) {
+		TypedQuery<T> query;
+		if (token == null) {
+			query = em.createQuery("SELECT e FROM " + entityName + " e ORDER BY e." + idName, entityClass);
+		} else {
+			query = em.createQuery("SELECT e FROM " + entityName + " e WHERE e." + idName + " > :lastId ORDER BY e."
+					+ idName, entityClass);
+			query.setParameter("lastId", decode(token));
+		}
+		// One extra row tells whether there is a next page, without a COUNT
+		List<T> content = query.setMaxResults(pageSize + 1).getResultList();
+		if (content.size() <= pageSize) {
+			return new Page<>(content, null);
+		}
+		content = content.subList(0, pageSize);
+		Object lastId = em.getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(content.get(pageSize - 1));
+		return new Page<>(content, encode(lastId));
+	}
+
+	// The total is only computed when asked for, as it requires a full index scan
+	public long count() {
+		return em.createQuery("SELECT COUNT(e) FROM " + entityName + " e", Long.class).getSingleResult();
+	}
+
+	private String encode(Object lastId) {
+		String value = entityName + ":" + lastId;
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private Object decode(String token) {
+		String value;
+		try {
+			value = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Malformed continuation token: " + token, e);
+		}
+		String prefix = entityName + ":";
+		if (!value.startsWith(prefix)) {
+			throw new IllegalArgumentException("Continuation token does not belong to " + entityName + ": " + token);
+		}
+		String lastId = value.substring(prefix.length());
+		try {
+			if (idType == Long.class) {
+				return Long.valueOf(lastId);
+			} else if (idType == Integer.class) {
+				return Integer.valueOf(lastId);
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Malformed continuation token: " + token, e);
+		}
+		return lastId;
+	}
+
+	public static class Page<T> {
+		private final List<T> content;
+		private final String nextToken;
+
+		private Page(List<T> content, String nextToken) {
+			this.content = content;
+			this.nextToken = nextToken;
+		}
+
+		public List<T> getContent() {
+			return content;
+		}
+
+		// Null on the last page
+		public String getNextToken() {
+			return nextToken;
+		}
+
+		public boolean hasNext() {
+			return nextToken != null;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package persistence;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Histogram of durations with power-of-two buckets: bucket 0 counts the
+ * durations under 1 microsecond, bucket i those from 2^(i-1) to 2^i
+ * microseconds, and the last one everything from about 18 minutes up.
+ * Recording a duration is a couple of LongAdder increments, so it can be
+ * done on every statement; the percentiles are the upper bounds of the
+ * buckets, i.e. they are precise within a factor of two.
+ */
+public class LatencyHistogram {
+	private static final int BUCKETS = 32;
+
+	private final LongAdder[] counts = new LongAdder[BUCKETS];
+	private final LongAdder totalNanos = new LongAdder();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	public LatencyHistogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = new LongAdder();
+		}
+	}
+
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos) / 1000;
+		int bucket = micros == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		counts[bucket].increment();
+		totalNanos.add(nanos);
+		if (nanos > maxNanos.get()) {
+			maxNanos.accumulateAndGet(nanos, Math::max);
+		}
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (LongAdder adder : counts) {
+			count += adder.sum();
+		}
+		return count;
+	}
+
+	public double getMeanMillis() {
+		long count = getCount();
+		return count == 0 ? 0 : totalNanos.sum() / 1e6 / count;
+	}
+
+	public double getMaxMillis() {
+		return maxNanos.get() / 1e6;
+	}
+
+	// The upper bound of the bucket holding the given percentile, e.g. 99
+	public double getPercentileMillis(double percentile) {
+		long[] snapshot = getBucketCounts();
+		long count = 0;
+		for (long bucketCount : snapshot) {
+			count += bucketCount;
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= Math.max(1, rank)) {
+				return Math.min((1L << i) / 1e3, getMaxMillis());
+			}
+		}
+		return getMaxMillis();
+	}
+
+	public long[] getBucketCounts() {
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts[i].sum();
+		}
+		return snapshot;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("[count=%d, meanMillis=%.3f, p50Millis=%.3f, p99Millis=%.3f, maxMillis=%.3f]", getCount(),
+				getMeanMillis(), getPercentileMillis(50), getPercentileMillis(99), getMaxMillis());
+	}
+}
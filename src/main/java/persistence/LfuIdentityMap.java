@@ -0,0 +1,89 @@
+package persistence;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.internal.identitymaps.CacheKey;
+import org.eclipse.persistence.internal.identitymaps.FullIdentityMap;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+
+/*
+ * A fixed size cache evicting the least frequently used objects, with hit,
+ * miss and eviction counters. Set on a descriptor by Chapter06Customizer.
+ * To keep puts cheap, eviction runs in batches: once the cache exceeds its
+ * size by a tenth, it is trimmed back to its size in one pass; the access
+ * counts of the survivors are then halved, so that objects popular in the
+ * past do not stay in the cache forever.
+ */
+public class LfuIdentityMap extends FullIdentityMap {
+	private static final long serialVersionUID = 1L;
+
+	private final transient CacheStatistics statistics;
+
+	public LfuIdentityMap(int size, ClassDescriptor descriptor, AbstractSession session, boolean isolated) {
+		super(size, descriptor, session, isolated);
+		this.statistics = CacheStatistics.forEntity(session.getName(), descriptor.getAlias());
+	}
+
+	@Override
+	public CacheKey createCacheKey(Object primaryKey, Object object, Object writeLockValue, long readTime) {
+		return new CountingCacheKey(primaryKey, object, writeLockValue, readTime, isIsolated);
+	}
+
+	@Override
+	public CacheKey getCacheKey(Object primaryKey, boolean forMerge) {
+		CacheKey cacheKey = super.getCacheKey(primaryKey, forMerge);
+		if (!forMerge) {
+			if (cacheKey != null && cacheKey.getObject() != null) {
+				((CountingCacheKey) cacheKey).accesses.incrementAndGet();
+				statistics.recordHit();
+			} else {
+				statistics.recordMiss();
+			}
+		}
+		return cacheKey;
+	}
+
+	@Override
+	protected CacheKey putCacheKeyIfAbsent(CacheKey searchKey) {
+		CacheKey cacheKey = super.putCacheKeyIfAbsent(searchKey);
+		if (cacheKey == null && getMaxSize() > 0 && getSize() > getMaxSize() + Math.max(1, getMaxSize() / 10)) {
+			trim();
+		}
+		return cacheKey;
+	}
+
+	private synchronized void trim() {
+		int excess = getSize() - getMaxSize();
+		if (excess <= 0) {
+			return;
+		}
+		List<CacheKey> keys = new ArrayList<>(getCacheKeys().values());
+		keys.sort(Comparator.comparingLong(key -> ((CountingCacheKey) key).accesses.get()));
+		int evicted = 0;
+		for (CacheKey key : keys) {
+			if (evicted < excess) {
+				remove(key);
+				evicted++;
+			} else {
+				AtomicLong accesses = ((CountingCacheKey) key).accesses;
+				accesses.set(accesses.get() / 2);
+			}
+		}
+		statistics.recordEvictions(evicted);
+	}
+
+	private static class CountingCacheKey extends CacheKey {
+		private static final long serialVersionUID = 1L;
+
+		private final AtomicLong accesses = new AtomicLong();
+
+		private CountingCacheKey(Object primaryKey, Object object, Object writeLockValue, long readTime,
+				boolean isIsolated) {
+			super(primaryKey, object, writeLockValue, readTime, isIsolated);
+		}
+	}
+}
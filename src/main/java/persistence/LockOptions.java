@@ -0,0 +1,60 @@
+package persistence;
+
+/*
+ * How RowLocks waits for a row locked by another transaction:
+ * - block: until the database gives up (innodb_lock_wait_timeout, 50 s by
+ *   default on MySQL)
+ * - timeout: for at most the given time; MySQL counts it in whole seconds,
+ *   so it is rounded up to the next second there
+ * - noWait: not at all, the row is reported as locked at once
+ * - skipLocked: not at all, the row is silently left out
+ */
+public class LockOptions {
+	public enum Wait {
+		BLOCK, TIMEOUT, NOWAIT, SKIP_LOCKED
+	}
+
+	private static final LockOptions BLOCK = new LockOptions(Wait.BLOCK, 0);
+	private static final LockOptions NOWAIT = new LockOptions(Wait.NOWAIT, 0);
+	private static final LockOptions SKIP_LOCKED = new LockOptions(Wait.SKIP_LOCKED, 0);
+
+	private final Wait wait;
+	private final long timeoutMillis;
+
+	private LockOptions(Wait wait, long timeoutMillis) {
+		this.wait = wait;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	public static LockOptions block() {
+		return BLOCK;
+	}
+
+	public static LockOptions timeout(long timeoutMillis) {
+		if (timeoutMillis < 1) {
+			throw new IllegalArgumentException("timeoutMillis must be positive: " + timeoutMillis);
+		}
+		return new LockOptions(Wait.TIMEOUT, timeoutMillis);
+	}
+
+	public static LockOptions noWait() {
+		return NOWAIT;
+	}
+
+	public static LockOptions skipLocked() {
+		return SKIP_LOCKED;
+	}
+
+	public Wait getWait() {
+		return wait;
+	}
+
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	@Override
+	public String toString() {
+		return wait == Wait.TIMEOUT ? "TIMEOUT " + timeoutMillis + " ms" : wait.toString();
+	}
+}
@@ -0,0 +1,80 @@
+package persistence;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.persistence.jpa.JpaHelper;
+
+/*
+ * Pessimistic lock counters, one instance per session and entity, updated by
+ * RowLocks: the time spent acquiring each lock (including the read of the
+ * row), and the number of attempts that timed out or, with NOWAIT, found the
+ * row locked. As with QueryStatistics, the session is that of a persistence
+ * unit, so that two units never share their counters.
+ */
+public class LockStatistics {
+	// By session name, then by entity name
+	private static final ConcurrentMap<String, ConcurrentMap<String, LockStatistics>> REGISTRY =
+			new ConcurrentHashMap<>();
+
+	private final String sessionName;
+	private final String entityName;
+	private final LatencyHistogram waits = new LatencyHistogram();
+	private final LongAdder timeouts = new LongAdder();
+
+	private LockStatistics(String sessionName, String entityName) {
+		this.sessionName = sessionName;
+		this.entityName = entityName;
+	}
+
+	public static LockStatistics forEntity(String sessionName, String entityName) {
+		return entities(sessionName).computeIfAbsent(entityName, entity -> new LockStatistics(sessionName, entity));
+	}
+
+	public static Map<String, LockStatistics> all(String sessionName) {
+		return Collections.unmodifiableMap(entities(sessionName));
+	}
+
+	public static Map<String, LockStatistics> all(EntityManagerFactory emf) {
+		return all(JpaHelper.getServerSession(emf).getName());
+	}
+
+	private static ConcurrentMap<String, LockStatistics> entities(String sessionName) {
+		return REGISTRY.computeIfAbsent(sessionName, session -> new ConcurrentHashMap<>());
+	}
+
+	public String getSessionName() {
+		return sessionName;
+	}
+
+	public String getEntityName() {
+		return entityName;
+	}
+
+	public LatencyHistogram getWaits() {
+		return waits;
+	}
+
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	void recordWait(long nanos) {
+		waits.record(nanos);
+	}
+
+	void recordTimeout() {
+		timeouts.increment();
+	}
+
+	@Override
+	public String toString() {
+		return "LockStatistics [sessionName=" + sessionName + ", entityName=" + entityName + ", waits=" + waits
+				+ ", timeouts=" + getTimeouts() + "]";
+	}
+}
@@ -0,0 +1,43 @@
+package persistence;
+
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.internal.identitymaps.CacheIdentityMap;
+import org.eclipse.persistence.internal.identitymaps.CacheKey;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+
+/*
+ * EclipseLink's fixed size, least recently used cache, with hit, miss and
+ * eviction counters. Set on a descriptor by Chapter06Customizer.
+ */
+public class LruIdentityMap extends CacheIdentityMap {
+	private static final long serialVersionUID = 1L;
+
+	private final transient CacheStatistics statistics;
+
+	public LruIdentityMap(int size, ClassDescriptor descriptor, AbstractSession session, boolean isolated) {
+		super(size, descriptor, session, isolated);
+		this.statistics = CacheStatistics.forEntity(session.getName(), descriptor.getAlias());
+	}
+
+	@Override
+	public CacheKey getCacheKey(Object primaryKey, boolean forMerge) {
+		CacheKey cacheKey = super.getCacheKey(primaryKey, forMerge);
+		if (!forMerge) {
+			if (cacheKey != null && cacheKey.getObject() != null) {
+				statistics.recordHit();
+			} else {
+				statistics.recordMiss();
+			}
+		}
+		return cacheKey;
+	}
+
+	@Override
+	protected void ensureFixedSize() {
+		synchronized (this.first) {
+			int size = getSize();
+			super.ensureFixedSize();
+			statistics.recordEvictions(size - getSize());
+		}
+	}
+}
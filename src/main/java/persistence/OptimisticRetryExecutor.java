@@ -0,0 +1,176 @@
+package persistence;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.internal.sessions.UnitOfWorkImpl;
+import org.eclipse.persistence.jpa.JpaHelper;
+
+/*
+ * Runs a unit of work in a transaction of its own and, when the commit fails
+ * with an optimistic lock conflict, runs it again from scratch in a new
+ * entity manager, so that it reads the current version of the entities.
+ * Between two attempts the thread sleeps for a random time between 0 and
+ * baseBackoffMillis * 2^(attempt - 1), capped at maxBackoffMillis ("full
+ * jitter"), so that the threads that collided do not collide again.
+ * The unit of work may run several times, so it should have no side effects
+ * other than on the entity manager it is given.
+ */
+public class OptimisticRetryExecutor {
+	public static final int DEFAULT_MAX_ATTEMPTS = 10;
+	public static final long DEFAULT_BASE_BACKOFF_MILLIS = 5;
+	public static final long DEFAULT_MAX_BACKOFF_MILLIS = 1000;
+
+	private final EntityManagerFactory emf;
+	private final String sessionName;
+	private final int maxAttempts;
+	private final long baseBackoffMillis;
+	private final long maxBackoffMillis;
+
+	public OptimisticRetryExecutor(EntityManagerFactory emf) {
+		this(emf, DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS);
+	}
+
+	public OptimisticRetryExecutor(EntityManagerFactory emf, int maxAttempts, long baseBackoffMillis,
+			long maxBackoffMillis) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+		}
+		if (baseBackoffMillis < 0 || maxBackoffMillis < baseBackoffMillis) {
+			throw new IllegalArgumentException(
+					"Invalid backoff range: " + baseBackoffMillis + " - " + maxBackoffMillis);
+		}
+		this.emf = emf;
+		this.sessionName = JpaHelper.getServerSession(emf).getName();
+		this.maxAttempts = maxAttempts;
+		this.baseBackoffMillis = baseBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	public void run(Consumer<EntityManager> work) {
+		execute(em -> {
+			work.accept(em);
+			return null;
+		});
+	}
+
+	/*
+	 * Returns the result of the attempt that committed. Once maxAttempts
+	 * attempts have failed, the exception of the last one is rethrown; any
+	 * exception other than an optimistic lock conflict is rethrown at once.
+	 */
+	public <T> T execute(Function<EntityManager, T> work) {
+		for (int attempt = 1;; attempt++) {
+			RuntimeException conflict;
+			EntityManager em = emf.createEntityManager();
+			EntityTransaction tx = em.getTransaction();
+			try {
+				tx.begin();
+				T result = work.apply(em);
+				// Flushing first makes the conflict surface while the persistence
+				// context still holds the entities, see conflictingEntities()
+				em.flush();
+				tx.commit();
+				return result;
+			} catch (RuntimeException e) {
+				Set<String> entityNames = conflictingEntities(e, em);
+				if (entityNames.isEmpty()) {
+					throw e;
+				}
+				for (String entityName : entityNames) {
+					ConflictStatistics statistics = ConflictStatistics.forEntity(sessionName, entityName);
+					statistics.recordConflict();
+					if (attempt == maxAttempts) {
+						statistics.recordExhausted();
+					}
+				}
+				conflict = e;
+			} finally {
+				if (tx.isActive()) {
+					tx.rollback();
+				}
+				em.close();
+			}
+
+			// The connection is back in the pool while the thread sleeps
+			if (attempt == maxAttempts || !backOff(attempt)) {
+				throw conflict;
+			}
+		}
+	}
+
+	// Returns false if the thread was interrupted while sleeping
+	private boolean backOff(int attempt) {
+		long ceiling = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(attempt - 1, 30));
+		if (ceiling == 0) {
+			return true;
+		}
+		try {
+			Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+			return true;
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/*
+	 * The conflict surfaces either as a javax.persistence.OptimisticLockException
+	 * or wrapped in a RollbackException. When it is detected by a JDBC batch
+	 * (eclipselink.jdbc.batch-writing) EclipseLink cannot tell which row failed,
+	 * so the conflict is then counted for every versioned entity of the
+	 * persistence context. Returns an empty set if the exception is not a
+	 * conflict.
+	 */
+	private Set<String> conflictingEntities(Throwable e, EntityManager em) {
+		boolean conflict = false;
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			Object entity = null;
+			if (cause instanceof javax.persistence.OptimisticLockException) {
+				entity = ((javax.persistence.OptimisticLockException) cause).getEntity();
+			} else if (cause instanceof org.eclipse.persistence.exceptions.OptimisticLockException) {
+				org.eclipse.persistence.exceptions.OptimisticLockException ole = (org.eclipse.persistence.exceptions.OptimisticLockException) cause;
+				entity = ole.getQuery() == null ? null : ole.getObject();
+			} else {
+				continue;
+			}
+			if (entity != null) {
+				return Collections.singleton(entityName(entity.getClass()));
+			}
+			conflict = true;
+		}
+		if (!conflict) {
+			return Collections.emptySet();
+		}
+
+		Set<String> entityNames = new TreeSet<>();
+		UnitOfWorkImpl unitOfWork = em.unwrap(UnitOfWorkImpl.class);
+		for (Object entity : unitOfWork.getCloneMapping().keySet()) {
+			ClassDescriptor descriptor = unitOfWork.getDescriptor(entity);
+			if (descriptor != null && descriptor.usesOptimisticLocking()) {
+				entityNames.add(descriptor.getAlias());
+			}
+		}
+		if (entityNames.isEmpty()) {
+			entityNames.add("unknown");
+		}
+		return entityNames;
+	}
+
+	private String entityName(Class<?> entityClass) {
+		try {
+			return emf.getMetamodel().entity(entityClass).getName();
+		} catch (IllegalArgumentException e) {
+			return entityClass.getSimpleName();
+		}
+	}
+}
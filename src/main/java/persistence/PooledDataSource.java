@@ -0,0 +1,663 @@
+package persistence;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.logging.AbstractSessionLog;
+import org.eclipse.persistence.logging.SessionLog;
+import org.eclipse.persistence.sessions.Connector;
+import org.eclipse.persistence.sessions.DatasourceLogin;
+import org.eclipse.persistence.sessions.JNDIConnector;
+
+/*
+ * A small JDBC connection pool, installed by Chapter06Customizer when
+ * chapter06.pool.max-size is set:
+ * - at most maxSize connections are handed out at once; getConnection() waits
+ *   up to acquireTimeoutMillis for one to be returned, then fails
+ * - minSize connections are kept open, the connections above it are closed
+ *   after IDLE_TIMEOUT_MILLIS without use
+ * - a connection left unused for more than VALIDATION_MILLIS is checked with
+ *   Connection.isValid() before being handed out again
+ * - a connection held for more than leakThresholdMillis is reported once, with
+ *   the stack trace of the code that acquired it (0 disables the check)
+ * - each connection keeps up to statementCacheSize prepared statements, so
+ *   that the same SQL is not prepared again every time the connection is used
+ *   (0 disables the cache); the fetch size, query timeout and max rows of a
+ *   statement are reset when it returns to the cache, as EclipseLink only sets
+ *   them when they are not 0
+ * - a returned connection is rolled back, and gets back the auto-commit,
+ *   transaction isolation and read-only settings it was opened with
+ * The settings must be set before the first getConnection(). The counters
+ * are meant for sizing the pool against the number of worker threads.
+ */
+public class PooledDataSource implements DataSource, AutoCloseable {
+	public static final int DEFAULT_MIN_SIZE = 0;
+	public static final int DEFAULT_MAX_SIZE = 10;
+	public static final long DEFAULT_ACQUIRE_TIMEOUT_MILLIS = 30_000;
+	public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+
+	static final long VALIDATION_MILLIS = 5_000;
+	static final long IDLE_TIMEOUT_MILLIS = 600_000;
+	private static final long HOUSEKEEPING_MILLIS = 1_000;
+
+	private final String url;
+	private final String user;
+	private final String password;
+	private int minSize = DEFAULT_MIN_SIZE;
+	private int maxSize = DEFAULT_MAX_SIZE;
+	private long acquireTimeoutMillis = DEFAULT_ACQUIRE_TIMEOUT_MILLIS;
+	private long leakThresholdMillis;
+	private int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+	private SessionLog log = AbstractSessionLog.getLog();
+
+	// The most recently used connection is handed out first, so that the
+	// connections above the needs of the load age and get closed
+	private final Deque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+	private final Set<PooledConnection> active = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger size = new AtomicInteger();
+	private volatile Semaphore permits;
+	private ScheduledExecutorService housekeeper;
+	private volatile boolean closed;
+
+	private final LongAdder acquisitions = new LongAdder();
+	private final LongAdder waits = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder leaks = new LongAdder();
+	private final LongAdder statementHits = new LongAdder();
+	private final LongAdder statementMisses = new LongAdder();
+
+	public PooledDataSource(String url, String user, String password) {
+		this.url = url;
+		this.user = user;
+		this.password = password;
+	}
+
+	// The pool installed by Chapter06Customizer, or null if there is none
+	public static PooledDataSource of(EntityManagerFactory emf) {
+		Connector connector = ((DatasourceLogin) JpaHelper.getServerSession(emf).getDatasourceLogin()).getConnector();
+		if (connector instanceof JNDIConnector && ((JNDIConnector) connector).getDataSource() instanceof PooledDataSource) {
+			return (PooledDataSource) ((JNDIConnector) connector).getDataSource();
+		}
+		return null;
+	}
+
+	public void setMinSize(int minSize) {
+		checkNotStarted();
+		if (minSize < 0) {
+			throw new IllegalArgumentException("minSize must not be negative: " + minSize);
+		}
+		this.minSize = minSize;
+	}
+
+	public void setMaxSize(int maxSize) {
+		checkNotStarted();
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+		}
+		this.maxSize = maxSize;
+	}
+
+	public void setAcquireTimeoutMillis(long acquireTimeoutMillis) {
+		checkNotStarted();
+		if (acquireTimeoutMillis < 0) {
+			throw new IllegalArgumentException("acquireTimeoutMillis must not be negative: " + acquireTimeoutMillis);
+		}
+		this.acquireTimeoutMillis = acquireTimeoutMillis;
+	}
+
+	public void setLeakThresholdMillis(long leakThresholdMillis) {
+		checkNotStarted();
+		if (leakThresholdMillis < 0) {
+			throw new IllegalArgumentException("leakThresholdMillis must not be negative: " + leakThresholdMillis);
+		}
+		this.leakThresholdMillis = leakThresholdMillis;
+	}
+
+	public void setStatementCacheSize(int statementCacheSize) {
+		checkNotStarted();
+		if (statementCacheSize < 0) {
+			throw new IllegalArgumentException("statementCacheSize must not be negative: " + statementCacheSize);
+		}
+		this.statementCacheSize = statementCacheSize;
+	}
+
+	public void setLog(SessionLog log) {
+		this.log = log;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		if (closed) {
+			throw new SQLException("The pool is closed");
+		}
+		Semaphore permits = start();
+		acquisitions.increment();
+		if (!permits.tryAcquire()) {
+			waits.increment();
+			long start = System.nanoTime();
+			boolean acquired;
+			try {
+				acquired = permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for a connection", e);
+			} finally {
+				long waited = System.nanoTime() - start;
+				waitNanos.add(waited);
+				maxWaitNanos.accumulateAndGet(waited, Math::max);
+			}
+			if (!acquired) {
+				timeouts.increment();
+				throw new SQLTransientConnectionException(
+						"No connection available within " + acquireTimeoutMillis + " ms: " + this);
+			}
+		}
+
+		try {
+			PooledConnection connection = takeIdle();
+			if (connection == null) {
+				connection = open();
+			}
+			return connection.checkOut();
+		} catch (SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	// EclipseLink passes the user of the login, which is the user of the pool
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		if (!Objects.equals(username, user)) {
+			throw new SQLFeatureNotSupportedException("The pool only holds connections of " + user);
+		}
+		return getConnection();
+	}
+
+	public int getActiveConnections() {
+		return active.size();
+	}
+
+	public int getIdleConnections() {
+		return idle.size();
+	}
+
+	public long getAcquisitions() {
+		return acquisitions.sum();
+	}
+
+	// Number of getConnection() calls that found no connection available
+	public long getWaits() {
+		return waits.sum();
+	}
+
+	public double getAverageWaitMillis() {
+		long waits = getWaits();
+		return waits == 0 ? 0 : waitNanos.sum() / 1e6 / waits;
+	}
+
+	public double getMaxWaitMillis() {
+		return maxWaitNanos.get() / 1e6;
+	}
+
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	public long getLeaks() {
+		return leaks.sum();
+	}
+
+	public long getStatementCacheHits() {
+		return statementHits.sum();
+	}
+
+	public long getStatementCacheMisses() {
+		return statementMisses.sum();
+	}
+
+	/*
+	 * Closes the idle connections at once, and the active ones when they are
+	 * returned.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		if (housekeeper != null) {
+			housekeeper.shutdownNow();
+		}
+		for (PooledConnection connection; (connection = idle.pollFirst()) != null;) {
+			connection.closePhysical();
+		}
+	}
+
+	private synchronized Semaphore start() {
+		if (permits == null) {
+			permits = new Semaphore(maxSize, true);
+			housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "pooled-data-source-housekeeper");
+				thread.setDaemon(true);
+				return thread;
+			});
+			housekeeper.scheduleWithFixedDelay(this::houseKeeping, 0, HOUSEKEEPING_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		return permits;
+	}
+
+	private void checkNotStarted() {
+		if (permits != null) {
+			throw new IllegalStateException("The pool is already in use");
+		}
+	}
+
+	private PooledConnection open() throws SQLException {
+		Connection physical = DriverManager.getConnection(url, user, password);
+		size.incrementAndGet();
+		try {
+			return new PooledConnection(physical);
+		} catch (SQLException e) {
+			size.decrementAndGet();
+			physical.close();
+			throw e;
+		}
+	}
+
+	private PooledConnection takeIdle() {
+		for (PooledConnection connection; (connection = idle.pollFirst()) != null;) {
+			if (connection.idleMillis() < VALIDATION_MILLIS || connection.isValid()) {
+				return connection;
+			}
+			connection.closePhysical();
+		}
+		return null;
+	}
+
+	private void houseKeeping() {
+		try {
+			long now = System.nanoTime();
+			if (leakThresholdMillis > 0) {
+				for (PooledConnection connection : active) {
+					connection.checkLeak(now);
+				}
+			}
+
+			for (Iterator<PooledConnection> iterator = idle.descendingIterator(); iterator.hasNext()
+					&& size.get() > minSize;) {
+				PooledConnection connection = iterator.next();
+				if (connection.idleMillis() > IDLE_TIMEOUT_MILLIS && idle.removeLastOccurrence(connection)) {
+					connection.closePhysical();
+				}
+			}
+			while (!closed && size.get() < minSize) {
+				idle.offerLast(open());
+			}
+		} catch (SQLException | RuntimeException e) {
+			log.logThrowable(SessionLog.WARNING, SessionLog.CONNECTION, e);
+		}
+	}
+
+	@Override
+	public PrintWriter getLogWriter() {
+		return null;
+	}
+
+	@Override
+	public void setLogWriter(PrintWriter out) {
+	}
+
+	@Override
+	public void setLoginTimeout(int seconds) {
+	}
+
+	@Override
+	public int getLoginTimeout() {
+		return 0;
+	}
+
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if (iface.isInstance(this)) {
+			return iface.cast(this);
+		}
+		throw new SQLException("Not a wrapper for " + iface);
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) {
+		return iface.isInstance(this);
+	}
+
+	@Override
+	public String toString() {
+		return "PooledDataSource [active=" + getActiveConnections() + ", idle=" + getIdleConnections() + ", max="
+				+ maxSize + ", acquisitions=" + getAcquisitions() + ", waits=" + getWaits() + ", averageWaitMillis="
+				+ String.format("%.3f", getAverageWaitMillis()) + ", maxWaitMillis="
+				+ String.format("%.3f", getMaxWaitMillis()) + ", timeouts=" + getTimeouts() + ", leaks=" + getLeaks()
+				+ ", statementCacheHits=" + getStatementCacheHits() + ", statementCacheMisses="
+				+ getStatementCacheMisses() + "]";
+	}
+
+	private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/*
+	 * A physical connection. While it is checked out, the caller sees it
+	 * through a proxy of its own, whose close() returns it to the pool; a proxy
+	 * that was closed cannot be used any more, even after the connection has
+	 * been handed out again.
+	 */
+	private class PooledConnection {
+		private final Connection physical;
+		// Only used by the thread holding the connection
+		private final Map<String, CachedStatement> statements = new LinkedHashMap<String, CachedStatement>(16,
+				0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+				if (size() <= statementCacheSize) {
+					return false;
+				}
+				eldest.getValue().evict();
+				return true;
+			}
+		};
+		private volatile long lastUsed = System.nanoTime();
+		private volatile long acquiredAt;
+		private volatile Throwable acquiredBy;
+		private volatile boolean leakReported;
+		// The settings the connection gets back when returned, if the caller
+		// changed them
+		private final int isolation;
+		private final boolean readOnly;
+		private boolean isolationChanged;
+		private boolean readOnlyChanged;
+
+		private PooledConnection(Connection physical) throws SQLException {
+			this.physical = physical;
+			this.isolation = physical.getTransactionIsolation();
+			this.readOnly = physical.isReadOnly();
+		}
+
+		private Connection checkOut() {
+			acquiredAt = System.nanoTime();
+			acquiredBy = leakThresholdMillis > 0 ? new Throwable("Connection acquired here") : null;
+			leakReported = false;
+			active.add(this);
+			return (Connection) Proxy.newProxyInstance(PooledDataSource.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, new ConnectionHandle());
+		}
+
+		private void checkIn() {
+			active.remove(this);
+			if (leakReported) {
+				log.log(SessionLog.WARNING, SessionLog.CONNECTION, "Leaked connection returned after "
+						+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - acquiredAt) + " ms", null, false);
+			}
+			// The statements the caller did not close
+			for (CachedStatement statement : statements.values()) {
+				if (statement.inUse) {
+					statement.release();
+				}
+			}
+			try {
+				// Whatever the caller left uncommitted is rolled back
+				if (!physical.getAutoCommit()) {
+					physical.rollback();
+					physical.setAutoCommit(true);
+				}
+				if (isolationChanged) {
+					physical.setTransactionIsolation(isolation);
+					isolationChanged = false;
+				}
+				if (readOnlyChanged) {
+					physical.setReadOnly(readOnly);
+					readOnlyChanged = false;
+				}
+				physical.clearWarnings();
+				lastUsed = System.nanoTime();
+				if (closed) {
+					closePhysical();
+				} else {
+					idle.offerFirst(this);
+				}
+			} catch (SQLException e) {
+				log.logThrowable(SessionLog.WARNING, SessionLog.CONNECTION, e);
+				closePhysical();
+			} finally {
+				permits.release();
+			}
+		}
+
+		private long idleMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastUsed);
+		}
+
+		private boolean isValid() {
+			try {
+				return physical.isValid(5);
+			} catch (SQLException e) {
+				return false;
+			}
+		}
+
+		private void checkLeak(long now) {
+			Throwable acquiredBy = this.acquiredBy;
+			if (leakReported || acquiredBy == null
+					|| TimeUnit.NANOSECONDS.toMillis(now - acquiredAt) < leakThresholdMillis) {
+				return;
+			}
+			leakReported = true;
+			leaks.increment();
+			Exception leak = new Exception("Connection held for more than " + leakThresholdMillis
+					+ " ms, possibly leaked; acquired by:");
+			leak.setStackTrace(acquiredBy.getStackTrace());
+			log.logThrowable(SessionLog.WARNING, SessionLog.CONNECTION, leak);
+		}
+
+		private void closePhysical() {
+			size.decrementAndGet();
+			try {
+				physical.close();
+			} catch (SQLException e) {
+				log.logThrowable(SessionLog.FINE, SessionLog.CONNECTION, e);
+			}
+		}
+
+		// prepareStatement(sql) and prepareStatement(sql, resultSetType, resultSetConcurrency)
+		private Object prepare(Connection handle, Method method, Object[] args) throws Throwable {
+			String key = args.length == 1 ? (String) args[0] : args[0] + "\u0000" + args[1] + "," + args[2];
+			CachedStatement statement = statements.get(key);
+			if (statement != null && statement.evicted) {
+				// Could not be reset, see CachedStatement.release()
+				statements.remove(key);
+				statement = null;
+			}
+			if (statement != null && !statement.inUse) {
+				statementHits.increment();
+			} else {
+				statementMisses.increment();
+				PreparedStatement prepared = (PreparedStatement) invoke(physical, method, args);
+				if (statement != null) {
+					// The same SQL is already open on this connection: this one is
+					// not cached, and is really closed by the caller
+					return prepared;
+				}
+				statement = new CachedStatement(prepared);
+				statements.put(key, statement);
+			}
+			statement.inUse = true;
+			return Proxy.newProxyInstance(PooledDataSource.class.getClassLoader(),
+					new Class<?>[] { PreparedStatement.class }, new StatementHandle(handle, statement));
+		}
+
+		private class ConnectionHandle implements InvocationHandler {
+			private boolean handleClosed;
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				switch (method.getName()) {
+				case "close":
+					if (!handleClosed) {
+						handleClosed = true;
+						checkIn();
+					}
+					return null;
+				case "isClosed":
+					return handleClosed || physical.isClosed();
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "toString":
+					return "Pooled " + physical;
+				}
+				if (handleClosed) {
+					throw new SQLException("Connection is closed");
+				}
+				if (method.getName().equals("setTransactionIsolation")) {
+					isolationChanged = true;
+				} else if (method.getName().equals("setReadOnly")) {
+					readOnlyChanged = true;
+				}
+				if (method.getName().equals("prepareStatement") && statementCacheSize > 0
+						&& (args.length == 1 || args.length == 3 && method.getParameterTypes()[1] == int.class)) {
+					return prepare((Connection) proxy, method, args);
+				}
+				return PooledDataSource.invoke(physical, method, args);
+			}
+		}
+	}
+
+	private static class CachedStatement {
+		private final PreparedStatement statement;
+		private boolean inUse;
+		private boolean evicted;
+
+		private CachedStatement(PreparedStatement statement) {
+			this.statement = statement;
+		}
+
+		// An evicted statement still in use is closed when the caller closes it
+		private void evict() {
+			evicted = true;
+			if (!inUse) {
+				close();
+			}
+		}
+
+		private void close() {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				// The statement is discarded anyway
+			}
+		}
+
+		// Back to the cache, as prepared; a statement that cannot be reset is
+		// closed and dropped from the cache instead
+		private void release() {
+			if (evicted) {
+				close();
+				return;
+			}
+			try {
+				statement.clearParameters();
+				statement.clearBatch();
+				statement.setFetchSize(0);
+				statement.setQueryTimeout(0);
+				statement.setMaxRows(0);
+				inUse = false;
+			} catch (SQLException e) {
+				evicted = true;
+				close();
+			}
+		}
+	}
+
+	private static class StatementHandle implements InvocationHandler {
+		private final Connection connection;
+		private final CachedStatement cached;
+		private boolean handleClosed;
+
+		private StatementHandle(Connection connection, CachedStatement cached) {
+			this.connection = connection;
+			this.cached = cached;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+			case "close":
+				if (!handleClosed) {
+					handleClosed = true;
+					// Otherwise already released by checkIn(), and possibly handed
+					// out again since
+					if (!connection.isClosed()) {
+						cached.release();
+					}
+				}
+				return null;
+			case "isClosed":
+				return handleClosed || connection.isClosed() || cached.statement.isClosed();
+			case "getConnection":
+				return connection;
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return "Cached " + cached.statement;
+			}
+			if (handleClosed || connection.isClosed()) {
+				throw new SQLException("Statement is closed");
+			}
+			return PooledDataSource.invoke(cached.statement, method, args);
+		}
+	}
+}
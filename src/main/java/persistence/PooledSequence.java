@@ -0,0 +1,247 @@
+package persistence;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.persistence.exceptions.DatabaseException;
+import org.eclipse.persistence.internal.databaseaccess.Accessor;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.logging.SessionLog;
+import org.eclipse.persistence.sequencing.TableSequence;
+
+/*
+ * A hi-lo sequence with one row per entity in the SEQUENCE table. Being a
+ * TableSequence, schema generation creates its table and row as usual. Ids are
+ * handed out from an in-memory block without any locking; when half of the
+ * block has been consumed, the next block is reserved on a background thread,
+ * so that inserting threads normally never wait for the SEQUENCE row.
+ * Blocks are reserved on a separate connection, committed immediately, so the
+ * row lock is never held for the duration of the caller's transaction.
+ * Before its first block, a sequence makes sure that its row, created if
+ * missing, is past the ids already taken: the counter of the SEQ_GEN row
+ * all the entities shared before, and the largest id of the tables added
+ * with addIdColumn. A database created before the per-entity sequences thus
+ * carries on where it was; sql/migrate_sequences.sql does the same once, in
+ * SQL.
+ */
+public class PooledSequence extends TableSequence {
+	private static final long serialVersionUID = 1L;
+
+	// The row of EclipseLink's default table generator
+	public static final String LEGACY_SEQUENCE = "SEQ_GEN";
+
+	private static final ExecutorService REFILLER = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "pooled-sequence-refill");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private transient AtomicReference<Block> current = new AtomicReference<>();
+	private transient AtomicReference<Block> prefetched = new AtomicReference<>();
+	private transient volatile boolean seeded;
+	// SELECT MAX(<id>) FROM <table>, for every table drawing its ids from here
+	private final List<String> maxIdQueries = new ArrayList<>();
+
+	public PooledSequence(String name, int blockSize) {
+		super(name, blockSize);
+	}
+
+	public void addIdColumn(String tableName, String idColumnName) {
+		maxIdQueries.add("SELECT MAX(" + idColumnName + ") FROM " + tableName);
+	}
+
+	@Override
+	public Object getGeneratedValue(Accessor accessor, AbstractSession writeSession, String seqName) {
+		AbstractSession session = writeSession.getRootSession(null);
+		while (true) {
+			Block block = current.get();
+			if (block != null) {
+				long value = block.next.getAndIncrement();
+				if (value <= block.limit) {
+					// Exactly one thread sees the half-way mark of each block
+					if (value == block.limit - getPreallocationSize() / 2) {
+						prefetch(session, seqName);
+					}
+					return value;
+				}
+			}
+
+			Block next = prefetched.getAndSet(null);
+			if (next == null) {
+				next = allocate(session, seqName);
+			}
+			if (!current.compareAndSet(block, next)) {
+				// Another thread installed a block first; keep ours for later
+				prefetched.compareAndSet(null, next);
+			}
+		}
+	}
+
+	@Override
+	public void onDisconnect() {
+		// Unused ids of the in-memory blocks are simply lost, as with any hi-lo scheme
+		reset();
+		super.onDisconnect();
+	}
+
+	@Override
+	public boolean shouldUsePreallocation() {
+		return false;
+	}
+
+	private void prefetch(AbstractSession session, String seqName) {
+		REFILLER.execute(() -> {
+			try {
+				prefetched.compareAndSet(null, allocate(session, seqName));
+			} catch (RuntimeException e) {
+				// The next exhausted block will retry synchronously
+				session.logThrowable(SessionLog.WARNING, SessionLog.SEQUENCING, e);
+			}
+		});
+	}
+
+	private Block allocate(AbstractSession session, String seqName) {
+		int size = getPreallocationSize();
+		Connection connection = (Connection) session.getDatasourceLogin().connectToDatasource(null, session);
+		try {
+			connection.setAutoCommit(false);
+			try {
+				if (!seeded) {
+					seed(connection, seqName);
+				}
+				long counter = reserve(connection, seqName, size);
+				connection.commit();
+				seeded = true;
+				return new Block(counter - size + 1, counter);
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			}
+		} catch (SQLException e) {
+			throw DatabaseException.sqlException(e, session, false);
+		} finally {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				session.logThrowable(SessionLog.WARNING, SessionLog.SEQUENCING, e);
+			}
+		}
+	}
+
+	// Moves the row past the ids already taken, creating it if needed
+	private void seed(Connection connection, String seqName) throws SQLException {
+		String tableName = getQualifiedTableName();
+		String nameFieldName = getNameFieldName();
+		String counterFieldName = getCounterFieldName();
+		long floor = Math.max(getInitialValue() - 1L, max(connection, "SELECT " + counterFieldName + " FROM "
+				+ tableName + " WHERE " + nameFieldName + " = '" + LEGACY_SEQUENCE + "'"));
+		for (String maxIdQuery : maxIdQueries) {
+			floor = Math.max(floor, max(connection, maxIdQuery));
+		}
+		try (PreparedStatement update = connection.prepareStatement("UPDATE " + tableName + " SET "
+				+ counterFieldName + " = ? WHERE " + nameFieldName + " = ? AND " + counterFieldName + " < ?")) {
+			update.setLong(1, floor);
+			update.setString(2, seqName);
+			update.setLong(3, floor);
+			if (update.executeUpdate() > 0) {
+				return;
+			}
+		}
+		try (PreparedStatement select = connection.prepareStatement(
+				"SELECT COUNT(*) FROM " + tableName + " WHERE " + nameFieldName + " = ?")) {
+			select.setString(1, seqName);
+			try (ResultSet resultSet = select.executeQuery()) {
+				resultSet.next();
+				if (resultSet.getLong(1) > 0) {
+					return;
+				}
+			}
+		}
+		try (PreparedStatement insert = connection.prepareStatement(
+				"INSERT INTO " + tableName + " (" + nameFieldName + ", " + counterFieldName + ") VALUES (?, ?)")) {
+			insert.setString(1, seqName);
+			insert.setLong(2, floor);
+			insert.executeUpdate();
+		} catch (SQLException e) {
+			// Another node created the row in the meantime, and seeded it too
+		}
+	}
+
+	// The single value of the query, 0 if it is null or there is no row
+	private static long max(Connection connection, String query) throws SQLException {
+		try (PreparedStatement select = connection.prepareStatement(query);
+				ResultSet resultSet = select.executeQuery()) {
+			return resultSet.next() ? resultSet.getLong(1) : 0;
+		}
+	}
+
+	private long reserve(Connection connection, String seqName, int size) throws SQLException {
+		String tableName = getQualifiedTableName();
+		String nameFieldName = getNameFieldName();
+		String counterFieldName = getCounterFieldName();
+		try (PreparedStatement update = connection.prepareStatement("UPDATE " + tableName + " SET "
+				+ counterFieldName + " = " + counterFieldName + " + ? WHERE " + nameFieldName + " = ?")) {
+			update.setInt(1, size);
+			update.setString(2, seqName);
+			if (update.executeUpdate() == 0) {
+				// First use of this sequence: create its row, starting from the initial value
+				try (PreparedStatement insert = connection.prepareStatement(
+						"INSERT INTO " + tableName + " (" + nameFieldName + ", " + counterFieldName + ") VALUES (?, ?)")) {
+					insert.setString(1, seqName);
+					insert.setLong(2, getInitialValue() - 1L + size);
+					insert.executeUpdate();
+				} catch (SQLException e) {
+					// Another node created the row in the meantime
+					if (update.executeUpdate() == 0) {
+						throw e;
+					}
+				}
+			}
+		}
+
+		try (PreparedStatement select = connection.prepareStatement(
+				"SELECT " + counterFieldName + " FROM " + tableName + " WHERE " + nameFieldName + " = ?")) {
+			select.setString(1, seqName);
+			try (ResultSet resultSet = select.executeQuery()) {
+				resultSet.next();
+				return resultSet.getLong(1);
+			}
+		}
+	}
+
+	@Override
+	public Object clone() {
+		PooledSequence clone = (PooledSequence) super.clone();
+		clone.reset();
+		return clone;
+	}
+
+	private Object readResolve() {
+		reset();
+		return this;
+	}
+
+	private void reset() {
+		current = new AtomicReference<>();
+		prefetched = new AtomicReference<>();
+		seeded = false;
+	}
+
+	private static final class Block {
+		private final AtomicLong next;
+		private final long limit;
+
+		private Block(long first, long limit) {
+			this.next = new AtomicLong(first);
+			this.limit = limit;
+		}
+	}
+}
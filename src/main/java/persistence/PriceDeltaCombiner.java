@@ -0,0 +1,180 @@
+package persistence;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.logging.SessionLog;
+
+/*
+ * Write-behind for price increments on hot rows: add() only accumulates the
+ * delta in memory, and the deltas of an id are written with a single
+ * PriceRepository.incrementPrice() every flushIntervalMillis, or as soon as
+ * maxDeltas of them are pending, so that thousands of increments per second
+ * on one Book cost a handful of UPDATEs instead of queueing on its row lock.
+ * The deltas are summed in ten-thousandths, in a LongAdder per id, so that
+ * concurrent add() calls neither lock nor contend on a single counter. A flush
+ * subtracts what it has written instead of resetting the sum, so a delta added
+ * while the UPDATE runs is kept for the next flush; if the UPDATE fails,
+ * nothing is subtracted and the deltas are retried on the next flush. What it
+ * has written is the float sent to the database, which holds only 24 bits of
+ * the sum: the digits it lost also stay pending for the next flush.
+ * The pending deltas are lost if the JVM dies before they are flushed: close()
+ * flushes them synchronously, and with Durability.SHUTDOWN_HOOK close() also
+ * runs on an orderly JVM exit (the EntityManagerFactory must still be open).
+ */
+public class PriceDeltaCombiner<T> implements AutoCloseable {
+	public enum Durability {
+		ON_CLOSE, SHUTDOWN_HOOK
+	}
+
+	private static final float SCALE = 10_000f;
+
+	private final PriceRepository<T> repository;
+	private final AbstractSession session;
+	private final int maxDeltas;
+	private final ConcurrentMap<Object, Pending> pending = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService flusher;
+	private final Thread shutdownHook;
+	private volatile boolean closed;
+
+	public PriceDeltaCombiner(EntityManagerFactory emf, Class<T> entityClass, long flushIntervalMillis,
+			int maxDeltas, Durability durability) {
+		if (flushIntervalMillis < 1) {
+			throw new IllegalArgumentException("flushIntervalMillis must be positive: " + flushIntervalMillis);
+		}
+		if (maxDeltas < 1) {
+			throw new IllegalArgumentException("maxDeltas must be positive: " + maxDeltas);
+		}
+		this.repository = new PriceRepository<>(emf, entityClass);
+		this.session = (AbstractSession) JpaHelper.getServerSession(emf);
+		this.maxDeltas = maxDeltas;
+		this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "price-delta-flush-" + entityClass.getSimpleName());
+			thread.setDaemon(true);
+			return thread;
+		});
+		flusher.scheduleWithFixedDelay(this::flushAll, flushIntervalMillis, flushIntervalMillis,
+				TimeUnit.MILLISECONDS);
+		if (durability == Durability.SHUTDOWN_HOOK) {
+			shutdownHook = new Thread(this::close, "price-delta-shutdown-" + entityClass.getSimpleName());
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+		} else {
+			shutdownHook = null;
+		}
+	}
+
+	public void add(Object id, float delta) {
+		if (closed) {
+			throw new IllegalStateException("The combiner is closed");
+		}
+		Pending entry = pending.computeIfAbsent(id, key -> new Pending());
+		entry.units.add(Math.round(delta * SCALE));
+		entry.count.increment();
+		if (entry.count.sum() >= maxDeltas && entry.scheduled.compareAndSet(false, true)) {
+			try {
+				flusher.execute(() -> {
+					entry.scheduled.set(false);
+					flush(id, entry);
+				});
+			} catch (RejectedExecutionException e) {
+				// Closing, the delta is written by close()
+			}
+		}
+	}
+
+	// The sum of the deltas of the id that are not written yet
+	public float pendingDelta(Object id) {
+		Pending entry = pending.get(id);
+		return entry == null ? 0 : entry.units.sum() / SCALE;
+	}
+
+	/*
+	 * The price in the database plus the pending deltas; null if there is no
+	 * entity with the given id. A flush of the id in progress is waited for, so
+	 * that its deltas are not counted twice.
+	 */
+	public Float getPrice(Object id) {
+		Pending entry = pending.get(id);
+		if (entry == null) {
+			return repository.findPrice(id);
+		}
+		synchronized (entry) {
+			Float price = repository.findPrice(id);
+			return price == null ? null : price + entry.units.sum() / SCALE;
+		}
+	}
+
+	public void flushAll() {
+		pending.forEach(this::flush);
+	}
+
+	/*
+	 * Stops the periodic flush and writes the pending deltas before returning.
+	 * Calling add() afterwards fails; the callers should be stopped first, as a
+	 * delta added while close() runs may be missed.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flushAll();
+		if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException e) {
+				// The JVM is already shutting down
+			}
+		}
+	}
+
+	// Flushes of the same id are serialized, add() never waits for them
+	private void flush(Object id, Pending entry) {
+		synchronized (entry) {
+			long units = entry.units.sum();
+			long count = entry.count.sum();
+			if (units == 0) {
+				entry.count.add(-count);
+				return;
+			}
+			float delta = units / SCALE;
+			long written = Math.round((double) delta * SCALE);
+			try {
+				if (repository.incrementPrice(id, delta)) {
+					entry.units.add(-written);
+				} else {
+					session.log(SessionLog.WARNING, SessionLog.QUERY, "Dropping price deltas of missing "
+							+ repository.getEntityClass().getSimpleName() + " " + id);
+					entry.units.add(-units);
+				}
+				entry.count.add(-count);
+			} catch (RuntimeException e) {
+				session.logThrowable(SessionLog.WARNING, SessionLog.QUERY, e);
+			}
+		}
+	}
+
+	// The entry of an id is kept once created: the ids are those of a catalog
+	private static class Pending {
+		private final LongAdder units = new LongAdder();
+		private final LongAdder count = new LongAdder();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+	}
+}
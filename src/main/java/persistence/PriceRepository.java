@@ -0,0 +1,114 @@
+package persistence;
+
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.internal.sessions.UnitOfWorkImpl;
+
+/*
+ * Changes the price of a Book or a CD with a single
+ * UPDATE ... SET price = price + ? WHERE id = ?, instead of loading the entity,
+ * adding to the price in Java and writing it back: the database applies the
+ * increments one after the other, so concurrent callers neither fail with an
+ * OptimisticLockException nor hold a row lock for longer than the statement.
+ * If the entity has a @Version, it is incremented as well, so that the
+ * transactions that read the entity before the update still fail on commit.
+ * The shared cache entry of the updated entity is invalidated by EclipseLink
+ * (only that entry, as the WHERE clause selects it by id), together with the
+ * cached query results of the class.
+ */
+public class PriceRepository<T> {
+	private final EntityManagerFactory emf;
+	private final Class<T> entityClass;
+	private final String update;
+	private final String select;
+
+	public PriceRepository(EntityManagerFactory emf, Class<T> entityClass) {
+		EntityType<T> entityType = emf.getMetamodel().entity(entityClass);
+		if (entityType.getAttribute("price").getJavaType() != Float.class) {
+			throw new IllegalArgumentException(entityType.getName() + " has no Float price");
+		}
+		String idName = entityType.getId(entityType.getIdType().getJavaType()).getName();
+		String set = "e.price = e.price + :delta";
+		for (SingularAttribute<? super T, ?> attribute : entityType.getSingularAttributes()) {
+			if (attribute.isVersion()) {
+				set += ", e." + attribute.getName() + " = e." + attribute.getName() + " + 1";
+			}
+		}
+		this.emf = emf;
+		this.entityClass = entityClass;
+		this.update = "UPDATE " + entityType.getName() + " e SET " + set + " WHERE e." + idName + " = :id";
+		this.select = "SELECT e.price FROM " + entityType.getName() + " e WHERE e." + idName + " = :id";
+	}
+
+	public Class<T> getEntityClass() {
+		return entityClass;
+	}
+
+	// Reads only the price, bypassing the persistence context; null if there is
+	// no entity with the given id
+	public Float findPrice(Object id) {
+		EntityManager em = emf.createEntityManager();
+		try {
+			List<Float> prices = em.createQuery(select, Float.class).setParameter("id", id).getResultList();
+			return prices.isEmpty() ? null : prices.get(0);
+		} finally {
+			em.close();
+		}
+	}
+
+	/*
+	 * Runs in a transaction of its own. Returns false if there is no entity
+	 * with the given id.
+	 */
+	public boolean incrementPrice(Object id, float delta) {
+		EntityManager em = emf.createEntityManager();
+		EntityTransaction tx = em.getTransaction();
+		try {
+			tx.begin();
+			boolean updated = incrementPrice(em, id, delta);
+			tx.commit();
+			return updated;
+		} finally {
+			if (tx.isActive()) {
+				tx.rollback();
+			}
+			em.close();
+		}
+	}
+
+	/*
+	 * Joins the transaction of the given entity manager, which must be active.
+	 * With the default AUTO flush mode, the pending changes are flushed before
+	 * the UPDATE; if the entity is managed, it is then refreshed, so that it
+	 * shows the new price and version.
+	 */
+	public boolean incrementPrice(EntityManager em, Object id, float delta) {
+		// EclipseLink inlines the parameters of bulk updates by default, which
+		// would make every delta a different statement to prepare
+		int count = em.createQuery(update).setHint(QueryHints.BIND_PARAMETERS, HintValues.TRUE)
+				.setParameter("delta", delta).setParameter("id", id).executeUpdate();
+		if (count == 0) {
+			return false;
+		}
+
+		// Only the persistence context itself is looked up, not the shared
+		// cache, so that nothing is read when the entity is not managed
+		UnitOfWorkImpl unitOfWork = em.unwrap(UnitOfWorkImpl.class);
+		ClassDescriptor descriptor = unitOfWork.getDescriptor(entityClass);
+		Object managed = unitOfWork.getIdentityMapAccessorInstance().getFromLocalIdentityMap(id, entityClass, true,
+				descriptor);
+		if (managed != null && em.contains(managed)) {
+			em.refresh(managed);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,254 @@
+package persistence;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.persistence.jpa.JpaHelper;
+
+/*
+ * Execution counters of a query, one instance per session and named query,
+ * JPQL string or entity operation (e.g. Customer.find, Customer.persist),
+ * updated by QueryStatisticsProfiler: the latencies, the rows returned or
+ * modified, the executions that failed, and the last SLOW_QUERY_SAMPLES
+ * executions slower than the threshold of the profiler, with their SQL.
+ * The session is that of a persistence unit, named after the unit and, when
+ * they are overridden, its connection properties: two units, or the same
+ * unit on two databases, never share their counters.
+ * Past MAX_QUERIES distinct names in a session, e.g. for JPQL strings built
+ * with literals, the executions are counted under OTHER. The statistics of
+ * a session, and their MXBeans, are removed when it logs out, see
+ * Chapter06Customizer.
+ */
+public class QueryStatistics implements QueryStatisticsMXBean {
+	public static final int MAX_QUERIES = 1000;
+	public static final String OTHER = "<other>";
+	public static final int SLOW_QUERY_SAMPLES = 10;
+
+	// By session name, then by query name
+	private static final ConcurrentMap<String, ConcurrentMap<String, QueryStatistics>> REGISTRY =
+			new ConcurrentHashMap<>();
+	private static final Set<String> JMX_SESSIONS = ConcurrentHashMap.newKeySet();
+
+	private final String sessionName;
+	private final String name;
+	private final LatencyHistogram latencies = new LatencyHistogram();
+	private final LongAdder rows = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final AtomicReferenceArray<SlowQuery> slowQueries = new AtomicReferenceArray<>(SLOW_QUERY_SAMPLES);
+	private final AtomicLong slowQueryCount = new AtomicLong();
+
+	private QueryStatistics(String sessionName, String name) {
+		this.sessionName = sessionName;
+		this.name = name;
+	}
+
+	public static QueryStatistics forQuery(String sessionName, String name) {
+		ConcurrentMap<String, QueryStatistics> queries = queries(sessionName);
+		QueryStatistics statistics = queries.get(name);
+		if (statistics != null) {
+			return statistics;
+		}
+		if (queries.size() >= MAX_QUERIES) {
+			return queries.computeIfAbsent(OTHER, other -> new QueryStatistics(sessionName, other));
+		}
+		QueryStatistics created = new QueryStatistics(sessionName, name);
+		statistics = queries.putIfAbsent(name, created);
+		if (statistics != null) {
+			return statistics;
+		}
+		if (JMX_SESSIONS.contains(sessionName)) {
+			created.register();
+		}
+		return created;
+	}
+
+	public static Map<String, QueryStatistics> all(String sessionName) {
+		return Collections.unmodifiableMap(queries(sessionName));
+	}
+
+	public static Map<String, QueryStatistics> all(EntityManagerFactory emf) {
+		return all(JpaHelper.getServerSession(emf).getName());
+	}
+
+	// Registers the statistics of every query of the session, present and
+	// future, as an MXBean
+	public static void registerMBeans(String sessionName) {
+		JMX_SESSIONS.add(sessionName);
+		for (QueryStatistics statistics : queries(sessionName).values()) {
+			statistics.register();
+		}
+	}
+
+	// Unregisters the MXBeans of the session and forgets its statistics
+	public static void remove(String sessionName) {
+		boolean registered = JMX_SESSIONS.remove(sessionName);
+		ConcurrentMap<String, QueryStatistics> queries = REGISTRY.remove(sessionName);
+		if (registered && queries != null) {
+			for (QueryStatistics statistics : queries.values()) {
+				statistics.unregister();
+			}
+		}
+	}
+
+	private static ConcurrentMap<String, QueryStatistics> queries(String sessionName) {
+		return REGISTRY.computeIfAbsent(sessionName, session -> new ConcurrentHashMap<>());
+	}
+
+	@Override
+	public String getSessionName() {
+		return sessionName;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	public LatencyHistogram getLatencies() {
+		return latencies;
+	}
+
+	@Override
+	public long getCount() {
+		return latencies.getCount();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	@Override
+	public long getRows() {
+		return rows.sum();
+	}
+
+	@Override
+	public double getMeanMillis() {
+		return latencies.getMeanMillis();
+	}
+
+	@Override
+	public double getP50Millis() {
+		return latencies.getPercentileMillis(50);
+	}
+
+	@Override
+	public double getP99Millis() {
+		return latencies.getPercentileMillis(99);
+	}
+
+	@Override
+	public double getMaxMillis() {
+		return latencies.getMaxMillis();
+	}
+
+	// The most recent first
+	@Override
+	public List<SlowQuery> getSlowQueries() {
+		List<SlowQuery> samples = new ArrayList<>(SLOW_QUERY_SAMPLES);
+		for (int i = 0; i < SLOW_QUERY_SAMPLES; i++) {
+			SlowQuery sample = slowQueries.get(i);
+			if (sample != null) {
+				samples.add(sample);
+			}
+		}
+		samples.sort(Comparator.comparingLong(SlowQuery::getTimestamp).reversed());
+		return samples;
+	}
+
+	void record(long nanos, long rowCount) {
+		latencies.record(nanos);
+		rows.add(rowCount);
+	}
+
+	void recordError(long nanos) {
+		latencies.record(nanos);
+		errors.increment();
+	}
+
+	void recordSlowQuery(long nanos, String sql) {
+		int slot = (int) (slowQueryCount.getAndIncrement() % SLOW_QUERY_SAMPLES);
+		slowQueries.set(slot, new SlowQuery(System.currentTimeMillis(), nanos / 1e6, sql,
+				Thread.currentThread().getName()));
+	}
+
+	private void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName());
+		} catch (JMException e) {
+			// Already registered by a concurrent registerMBeans(); the statistics
+			// stay available from all() anyway
+		}
+	}
+
+	private void unregister() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName());
+		} catch (JMException e) {
+			// Not registered, e.g. created while registerMBeans() was running
+		}
+	}
+
+	private ObjectName objectName() throws JMException {
+		return new ObjectName("persistence:type=QueryStatistics,session=" + ObjectName.quote(sessionName) + ",name="
+				+ ObjectName.quote(name));
+	}
+
+	@Override
+	public String toString() {
+		return "QueryStatistics [sessionName=" + sessionName + ", name=" + name + ", latencies=" + latencies
+				+ ", rows=" + getRows() + ", errors=" + getErrors() + ", slowQueries="
+				+ Math.min(slowQueryCount.get(), SLOW_QUERY_SAMPLES) + "]";
+	}
+
+	public static class SlowQuery {
+		private final long timestamp;
+		private final double millis;
+		private final String sql;
+		private final String thread;
+
+		SlowQuery(long timestamp, double millis, String sql, String thread) {
+			this.timestamp = timestamp;
+			this.millis = millis;
+			this.sql = sql;
+			this.thread = thread;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public double getMillis() {
+			return millis;
+		}
+
+		// Null when the query did not go to the database, e.g. a cache hit
+		public String getSql() {
+			return sql;
+		}
+
+		public String getThread() {
+			return thread;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("SlowQuery [millis=%.3f, sql=%s, thread=%s]", millis, sql, thread);
+		}
+	}
+}
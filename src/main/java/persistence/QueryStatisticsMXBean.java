@@ -0,0 +1,30 @@
+package persistence;
+
+import java.util.List;
+
+/*
+ * The view of a QueryStatistics registered in the platform MBeanServer, as
+ * persistence:type=QueryStatistics,session="<session>",name="<query>", when
+ * chapter06.statistics.jmx is set.
+ */
+public interface QueryStatisticsMXBean {
+	String getSessionName();
+
+	String getName();
+
+	long getCount();
+
+	long getErrors();
+
+	long getRows();
+
+	double getMeanMillis();
+
+	double getP50Millis();
+
+	double getP99Millis();
+
+	double getMaxMillis();
+
+	List<QueryStatistics.SlowQuery> getSlowQueries();
+}
@@ -0,0 +1,126 @@
+package persistence;
+
+import java.util.Collection;
+
+import org.eclipse.persistence.internal.helper.Helper;
+import org.eclipse.persistence.internal.sessions.AbstractRecord;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.queries.Cursor;
+import org.eclipse.persistence.queries.DatabaseQuery;
+import org.eclipse.persistence.queries.ReadObjectQuery;
+import org.eclipse.persistence.sessions.Record;
+import org.eclipse.persistence.sessions.SessionProfilerAdapter;
+
+/*
+ * Times every query executed by the session into the QueryStatistics of its
+ * name, installed by Chapter06Customizer when chapter06.statistics.enabled is
+ * set. Unlike the SQL logging of EclipseLink, nothing is formatted or written
+ * per statement: an execution costs a couple of LongAdder increments, and the
+ * SQL is only kept for the executions slower than slowQueryMillis.
+ * The queries are named after:
+ * - the entity operation for the writes of a commit: <entity>.persist for an
+ *   INSERT, <entity>.merge for the UPDATE of a merged or modified entity,
+ *   <entity>.remove for a DELETE; with batch writing, the time is that of
+ *   adding the statement to the batch
+ * - <entity>.find for a read by primary key, e.g. em.find(), which is also
+ *   counted when answered by the cache
+ * - the name of a named query, including those of CriteriaQueryCache
+ * - the JPQL string of any other JPQL query
+ * - the SQL of a native query or statement, e.g. of a PooledSequence
+ * - the query class and entity otherwise, e.g. "ReadObjectQuery Address" for
+ *   the lazy loading of a relationship
+ * Only the outermost query of a thread is recorded: the queries it triggers,
+ * such as the relationships read while building its objects, are part of its
+ * latency.
+ */
+public class QueryStatisticsProfiler extends SessionProfilerAdapter {
+	public static final long DEFAULT_SLOW_QUERY_MILLIS = 500;
+
+	private static final ThreadLocal<int[]> DEPTH = ThreadLocal.withInitial(() -> new int[1]);
+
+	private final long slowQueryNanos;
+
+	public QueryStatisticsProfiler() {
+		this(DEFAULT_SLOW_QUERY_MILLIS);
+	}
+
+	public QueryStatisticsProfiler(long slowQueryMillis) {
+		if (slowQueryMillis < 0) {
+			throw new IllegalArgumentException("The slow query threshold must not be negative: " + slowQueryMillis);
+		}
+		this.slowQueryNanos = slowQueryMillis * 1_000_000;
+	}
+
+	@Override
+	public Object profileExecutionOfQuery(DatabaseQuery query, Record row, AbstractSession session) {
+		int[] depth = DEPTH.get();
+		if (depth[0] > 0) {
+			return session.internalExecuteQuery(query, (AbstractRecord) row);
+		}
+		depth[0]++;
+		long start = System.nanoTime();
+		Object result = null;
+		boolean failed = true;
+		try {
+			result = session.internalExecuteQuery(query, (AbstractRecord) row);
+			failed = false;
+			return result;
+		} finally {
+			depth[0]--;
+			long nanos = System.nanoTime() - start;
+			// The client sessions and units of work are named after their server session
+			QueryStatistics statistics = QueryStatistics.forQuery(session.getName(), nameOf(query));
+			if (failed) {
+				statistics.recordError(nanos);
+			} else {
+				statistics.record(nanos, rowsOf(query, result));
+			}
+			if (nanos >= slowQueryNanos) {
+				statistics.recordSlowQuery(nanos, query.getSQLString());
+			}
+		}
+	}
+
+	static String nameOf(DatabaseQuery query) {
+		String entity = query.getDescriptor() == null ? null : query.getDescriptor().getAlias();
+		if (query.isInsertObjectQuery()) {
+			return entity + ".persist";
+		}
+		if (query.isUpdateObjectQuery()) {
+			return entity + ".merge";
+		}
+		if (query.isDeleteObjectQuery()) {
+			return entity + ".remove";
+		}
+		// Before the name, which for em.find() is that of the descriptor's
+		// read query, e.g. readCustomer
+		if (query.isReadObjectQuery() && ((ReadObjectQuery) query).isPrimaryKeyQuery()) {
+			return entity + ".find";
+		}
+		String name = query.getName();
+		if (name != null && !name.isEmpty()) {
+			return name;
+		}
+		if (query.getJPQLString() != null) {
+			return query.getJPQLString();
+		}
+		if ((query.isDataReadQuery() || query.isDataModifyQuery()) && query.getSQLString() != null) {
+			return query.getSQLString();
+		}
+		return Helper.getShortClassName(query) + (entity == null ? "" : " " + entity);
+	}
+
+	private static long rowsOf(DatabaseQuery query, Object result) {
+		if (result instanceof Collection) {
+			return ((Collection<?>) result).size();
+		}
+		if (result instanceof Integer && (query.isModifyAllQuery() || query.isDataModifyQuery())) {
+			return (Integer) result;
+		}
+		if (result instanceof Cursor) {
+			// The rows are read after the query, as the cursor is iterated
+			return 0;
+		}
+		return result == null ? 0 : 1;
+	}
+}
@@ -0,0 +1,116 @@
+package persistence;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.internal.sessions.UnitOfWorkImpl;
+import org.eclipse.persistence.queries.CursoredStream;
+import org.eclipse.persistence.queries.DatabaseQuery;
+import org.eclipse.persistence.queries.ReadQuery;
+
+/*
+ * Streams the results of a query through a forward-only JDBC cursor, instead
+ * of materializing them all with getResultList() (JPA 2.2 getResultStream()
+ * does exactly that in EclipseLink 2.7).
+ * Every fetchSize rows the rows already handed out are released from the
+ * cursor and the entities among them are detached (with their relationships
+ * cascading DETACH, as Customer.address), so a full table scan runs in
+ * constant memory. The rest of the persistence context is left alone, but an
+ * entity that was already managed when the stream returned it is detached
+ * too, and loses the changes it had.
+ * A detached entity that was changed is not written by the next flush or
+ * commit, so the stream refuses to start inside an active transaction:
+ * stream before it begins, or after it commits, and change the entities of
+ * the stream with a merge or a query of their own.
+ * The returned stream holds a connection until it is closed, so it should be
+ * used in a try-with-resources block.
+ * With MySQL, the rows are fetched fetchSize at a time only when the
+ * connection URL sets useCursorFetch=true; otherwise the driver buffers the
+ * whole result set.
+ */
+public class QueryStreams {
+	public static final int DEFAULT_FETCH_SIZE = 500;
+
+	private QueryStreams() {
+	}
+
+	public static <T> Stream<T> stream(EntityManager em, Query query) {
+		return stream(em, query, DEFAULT_FETCH_SIZE);
+	}
+
+	public static <T> Stream<T> stream(EntityManager em, Query query, int fetchSize) {
+		if (fetchSize < 1) {
+			throw new IllegalArgumentException("fetchSize must be positive: " + fetchSize);
+		}
+		if (em.isJoinedToTransaction()) {
+			throw new IllegalStateException("Cannot stream inside an active transaction");
+		}
+		query.setHint(QueryHints.CURSOR, HintValues.TRUE);
+		query.setHint(QueryHints.CURSOR_PAGE_SIZE, fetchSize);
+		query.setHint(QueryHints.JDBC_FETCH_SIZE, fetchSize);
+		// A cursor cannot be served from the query results cache (the hint can
+		// only switch it on), and a full scan should not fill it anyway.
+		// The hints above made the query a private copy of the named query
+		DatabaseQuery databaseQuery = query.unwrap(DatabaseQuery.class);
+		if (databaseQuery.isReadQuery()) {
+			((ReadQuery) databaseQuery).doNotCacheQueryResults();
+		}
+		CursoredStream cursor = (CursoredStream) query.getSingleResult();
+
+		UnitOfWorkImpl unitOfWork = em.unwrap(UnitOfWorkImpl.class);
+		Iterator<T> iterator = new Iterator<T>() {
+			// The rows of the current chunk
+			private final List<Object> handedOut = new ArrayList<>(fetchSize);
+
+			@Override
+			public boolean hasNext() {
+				return cursor.hasNext();
+			}
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public T next() {
+				if (!cursor.hasNext()) {
+					throw new NoSuchElementException();
+				}
+				if (handedOut.size() == fetchSize) {
+					cursor.releasePrevious();
+					for (Object row : handedOut) {
+						detach(row);
+					}
+					handedOut.clear();
+				}
+				Object row = cursor.next();
+				handedOut.add(row);
+				return (T) row;
+			}
+
+			// A row is an entity, a scalar, or an Object[] of them; only the managed
+			// entities are detached
+			private void detach(Object row) {
+				if (row instanceof Object[]) {
+					for (Object column : (Object[]) row) {
+						detach(column);
+					}
+				} else if (row != null && unitOfWork.isObjectRegistered(row)) {
+					em.detach(row);
+				}
+			}
+		};
+
+		return StreamSupport
+				.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false)
+				.onClose(cursor::close);
+	}
+}
@@ -0,0 +1,32 @@
+package persistence;
+
+import javax.persistence.Query;
+
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+
+/*
+ * Makes a query return the entities without registering them in the
+ * persistence context: no copy is made for the entity manager, none for
+ * change tracking, and the entities are not kept until the context is
+ * cleared. The entities cached in the shared cache (Customer, Address) are
+ * returned as they are there, shared by all the entity managers; a query
+ * whose results are cached, as Customer.FIND_ALL, returns the cached list
+ * without reading or copying anything. The others are built from the
+ * ResultSet and only referenced by the result.
+ * The entities returned must therefore not be modified, nor passed to
+ * persist, merge or remove: a change to a shared one would be seen by every
+ * entity manager, and never written to the database. To change one, find it
+ * with the entity manager. Their lazy relationships are still loaded on
+ * access, from the shared cache or with a SELECT of their own.
+ */
+public class ReadOnlyQueries {
+	private ReadOnlyQueries() {
+	}
+
+	// Returns the query, e.g. readOnly(em.createNamedQuery(...)).getResultList()
+	public static <Q extends Query> Q readOnly(Q query) {
+		query.setHint(QueryHints.READ_ONLY, HintValues.TRUE);
+		return query;
+	}
+}
@@ -0,0 +1,240 @@
+package persistence;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.LockModeType;
+import javax.persistence.LockTimeoutException;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.PessimisticLockException;
+import javax.persistence.Query;
+
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.sessions.server.Server;
+
+/*
+ * Pessimistic locking with a bound on the wait, see LockOptions. The locks
+ * are held until the end of the transaction of the given EntityManager.
+ * EclipseLink 2.7 ignores javax.persistence.lock.timeout on MySQL and knows
+ * nothing of SKIP LOCKED, so on MySQL (8.0 or later) the rows are read with a
+ * native SELECT ... FOR UPDATE / FOR SHARE [NOWAIT | SKIP LOCKED], and a
+ * timeout is applied by setting innodb_lock_wait_timeout for the duration of
+ * the statement. On the other databases the lock timeout hint is passed to
+ * EclipseLink (0 meaning NOWAIT), which only some platforms honour (H2 keeps
+ * its own LOCK_TIMEOUT), and SKIP LOCKED is emulated: the rows are locked one
+ * at a time with a timeout of 0, and those found locked are left out. This
+ * relies on the platform reporting the lock failure as a
+ * LockTimeoutException; the others (EclipseLink's H2Platform among them)
+ * report a PessimisticLockException, and EclipseLink then marks the
+ * transaction for rollback.
+ * Every lock acquisition is timed in the LockStatistics of the entity.
+ */
+public class RowLocks {
+	// MySQL error codes
+	private static final int ER_LOCK_WAIT_TIMEOUT = 1205;
+	private static final int ER_LOCK_NOWAIT = 3572;
+
+	private final Server session;
+	private final boolean mysql;
+
+	public RowLocks(EntityManagerFactory emf) {
+		this(JpaHelper.getServerSession(emf), JpaHelper.getServerSession(emf).getPlatform().isMySQL());
+	}
+
+	RowLocks(Server session, boolean mysql) {
+		this.session = session;
+		this.mysql = mysql;
+	}
+
+	/*
+	 * Reads the entity and locks its row. Returns null if there is no such
+	 * entity or, with SKIP_LOCKED, if its row is locked by another transaction.
+	 * Throws a LockTimeoutException if the lock could not be acquired in time
+	 * (at once with NOWAIT); EclipseLink then marks the transaction for
+	 * rollback.
+	 */
+	public <T> T find(EntityManager em, Class<T> entityClass, Object id, LockModeType lockMode, LockOptions options) {
+		if (lockMode != LockModeType.PESSIMISTIC_READ && lockMode != LockModeType.PESSIMISTIC_WRITE) {
+			throw new IllegalArgumentException("Unsupported lock mode: " + lockMode);
+		}
+		ClassDescriptor descriptor = session.getDescriptor(entityClass);
+		if (mysql) {
+			Query query = em.createNativeQuery("SELECT * FROM " + descriptor.getTableName() + " WHERE "
+					+ idColumn(descriptor) + " = ?" + lockClause(lockMode, options), entityClass);
+			query.setParameter(1, id);
+			// The row just locked is the current one, the cached copy may not be
+			query.setHint(QueryHints.REFRESH, HintValues.TRUE);
+			List<T> rows = lock(em, descriptor, options, () -> typed(query.getResultList()));
+			return rows.isEmpty() ? null : rows.get(0);
+		}
+
+		Map<String, Object> hints = new HashMap<>();
+		switch (options.getWait()) {
+		case TIMEOUT:
+			hints.put(QueryHints.PESSIMISTIC_LOCK_TIMEOUT, (int) options.getTimeoutMillis());
+			break;
+		case NOWAIT:
+		case SKIP_LOCKED:
+			hints.put(QueryHints.PESSIMISTIC_LOCK_TIMEOUT, 0);
+			break;
+		default:
+			break;
+		}
+		try {
+			return lock(em, descriptor, options, () -> em.find(entityClass, id, lockMode, hints));
+		} catch (LockTimeoutException e) {
+			if (options.getWait() == LockOptions.Wait.SKIP_LOCKED) {
+				return null;
+			}
+			throw e;
+		}
+	}
+
+	/*
+	 * Locks and returns up to max rows matching the SQL condition (null for all
+	 * the rows), in id order, leaving out the rows locked by other
+	 * transactions, so that concurrent callers never get the same row nor wait
+	 * for each other.
+	 */
+	public <T> List<T> claim(EntityManager em, Class<T> entityClass, String condition, int max) {
+		ClassDescriptor descriptor = session.getDescriptor(entityClass);
+		if (!mysql) {
+			return claimOneByOne(em, entityClass, descriptor, condition, max);
+		}
+		Query query = em.createNativeQuery("SELECT * FROM " + descriptor.getTableName()
+				+ (condition == null ? "" : " WHERE " + condition) + " ORDER BY " + idColumn(descriptor) + " LIMIT ?"
+				+ lockClause(LockModeType.PESSIMISTIC_WRITE, LockOptions.skipLocked()), entityClass);
+		query.setParameter(1, max);
+		query.setHint(QueryHints.REFRESH, HintValues.TRUE);
+		return lock(em, descriptor, LockOptions.skipLocked(), () -> typed(query.getResultList()));
+	}
+
+	/*
+	 * Without SKIP LOCKED: reads the matching rows max at a time, in id order,
+	 * and locks them one by one without waiting, leaving out those found
+	 * locked. A row locked is checked against the condition again, as another
+	 * transaction may have changed it since it was read.
+	 */
+	private <T> List<T> claimOneByOne(EntityManager em, Class<T> entityClass, ClassDescriptor descriptor,
+			String condition, int max) {
+		PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
+		String idColumn = idColumn(descriptor);
+		String matching = condition == null ? "1 = 1" : "(" + condition + ")";
+		Map<String, Object> hints = Collections.singletonMap(QueryHints.PESSIMISTIC_LOCK_TIMEOUT, 0);
+		List<T> claimed = new ArrayList<>();
+		Object after = null;
+		while (claimed.size() < max) {
+			Query candidates = em.createNativeQuery("SELECT * FROM " + descriptor.getTableName() + " WHERE " + matching
+					+ (after == null ? "" : " AND " + idColumn + " > ?") + " ORDER BY " + idColumn, entityClass);
+			if (after != null) {
+				candidates.setParameter(1, after);
+			}
+			candidates.setMaxResults(max);
+			List<T> rows = typed(candidates.getResultList());
+			for (T row : rows) {
+				Object id = util.getIdentifier(row);
+				after = id;
+				T entity;
+				try {
+					entity = lock(em, descriptor, LockOptions.noWait(),
+							() -> em.find(entityClass, id, LockModeType.PESSIMISTIC_WRITE, hints));
+				} catch (LockTimeoutException e) {
+					continue;
+				}
+				if (entity != null && (condition == null || stillMatches(em, descriptor, id, matching))) {
+					claimed.add(entity);
+					if (claimed.size() == max) {
+						break;
+					}
+				}
+			}
+			if (rows.size() < max) {
+				break;
+			}
+		}
+		return claimed;
+	}
+
+	private static boolean stillMatches(EntityManager em, ClassDescriptor descriptor, Object id, String matching) {
+		Query query = em.createNativeQuery("SELECT COUNT(*) FROM " + descriptor.getTableName() + " WHERE "
+				+ idColumn(descriptor) + " = ? AND " + matching);
+		query.setParameter(1, id);
+		return ((Number) query.getSingleResult()).longValue() > 0;
+	}
+
+	private <R> R lock(EntityManager em, ClassDescriptor descriptor, LockOptions options, Supplier<R> read) {
+		LockStatistics statistics = LockStatistics.forEntity(session.getName(), descriptor.getAlias());
+		Number previousTimeout = null;
+		if (mysql && options.getWait() == LockOptions.Wait.TIMEOUT) {
+			previousTimeout = (Number) em.createNativeQuery("SELECT @@SESSION.innodb_lock_wait_timeout")
+					.getSingleResult();
+			setLockWaitTimeout(em, (options.getTimeoutMillis() + 999) / 1000);
+		}
+		long start = System.nanoTime();
+		try {
+			return read.get();
+		} catch (LockTimeoutException e) {
+			statistics.recordTimeout();
+			throw e;
+		} catch (RuntimeException e) {
+			// EclipseLink reports most lock failures as PessimisticLockException
+			if (e instanceof PessimisticLockException || isLockFailure(e)) {
+				statistics.recordTimeout();
+				throw new LockTimeoutException("Could not lock " + descriptor.getAlias() + " (" + options + ")", e);
+			}
+			throw e;
+		} finally {
+			statistics.recordWait(System.nanoTime() - start);
+			if (previousTimeout != null) {
+				setLockWaitTimeout(em, previousTimeout.longValue());
+			}
+		}
+	}
+
+	private static void setLockWaitTimeout(EntityManager em, long seconds) {
+		em.createNativeQuery("SET SESSION innodb_lock_wait_timeout = " + seconds).executeUpdate();
+	}
+
+	private static String lockClause(LockModeType lockMode, LockOptions options) {
+		String clause = lockMode == LockModeType.PESSIMISTIC_WRITE ? " FOR UPDATE" : " FOR SHARE";
+		switch (options.getWait()) {
+		case NOWAIT:
+			return clause + " NOWAIT";
+		case SKIP_LOCKED:
+			return clause + " SKIP LOCKED";
+		default:
+			return clause;
+		}
+	}
+
+	private static String idColumn(ClassDescriptor descriptor) {
+		return descriptor.getPrimaryKeyFields().get(0).getName();
+	}
+
+	private static boolean isLockFailure(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof SQLException) {
+				int errorCode = ((SQLException) cause).getErrorCode();
+				if (errorCode == ER_LOCK_WAIT_TIMEOUT || errorCode == ER_LOCK_NOWAIT) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> List<T> typed(List<?> rows) {
+		return rows == null ? Collections.emptyList() : (List<T>) rows;
+	}
+}
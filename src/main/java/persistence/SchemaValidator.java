@@ -0,0 +1,191 @@
+package persistence;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.persistence.PersistenceException;
+
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.internal.helper.DatabaseField;
+import org.eclipse.persistence.logging.SessionLog;
+import org.eclipse.persistence.sequencing.TableSequence;
+import org.eclipse.persistence.sessions.Session;
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+
+/*
+ * Checks at login that the tables and columns mapped by the entities, and
+ * those of the table sequences, exist, in place of dropping and creating the
+ * schema at every start. Installed by Chapter06Customizer when
+ * chapter06.schema.validation is set.
+ * The mapping (tables, columns, types, lengths, nullability) is reduced to
+ * a SHA-256 checksum, which is stored in the SCHEMA_CHECKSUM table once the
+ * schema has been checked against the JDBC metadata. On the next starts,
+ * finding the checksum there takes a single SELECT; only a changed mapping
+ * reads the metadata again. Column types are not compared with the database,
+ * whose type names vary from one to the other.
+ * When the persistence unit generates the schema (a schema-generation
+ * database action other than none), nothing is checked, and the checksums
+ * are forgotten: the schema is checked again on the next start without
+ * generation.
+ * After changing the schema by hand, DELETE FROM SCHEMA_CHECKSUM forces the
+ * check.
+ */
+public class SchemaValidator extends SessionEventAdapter {
+	public static final String CHECKSUM_TABLE = "SCHEMA_CHECKSUM";
+
+	@Override
+	public void postLogin(SessionEvent event) {
+		Session session = event.getSession();
+		Object action = session.getProperty(PersistenceUnitProperties.SCHEMA_GENERATION_DATABASE_ACTION);
+		// The statements run on a connection of their own, so that the ones
+		// expected to fail are not logged by EclipseLink
+		try (Connection connection = (Connection) session.getDatasourceLogin().connectToDatasource(null, session)) {
+			if (action != null && !PersistenceUnitProperties.SCHEMA_GENERATION_NONE_ACTION.equals(action)) {
+				forgetChecksums(connection);
+			} else {
+				validate(session, connection);
+			}
+		} catch (SQLException e) {
+			throw new PersistenceException("Could not validate the database schema", e);
+		}
+	}
+
+	private static void validate(Session session, Connection connection) throws SQLException {
+		String checksum = checksum(session);
+		if (isValidated(connection, checksum)) {
+			return;
+		}
+		List<String> problems = compareWithDatabase(session, connection);
+		if (!problems.isEmpty()) {
+			throw new PersistenceException("The database schema does not match the entities: " + problems
+					+ "; generate it with " + PersistenceUnitProperties.SCHEMA_GENERATION_DATABASE_ACTION + "="
+					+ PersistenceUnitProperties.SCHEMA_GENERATION_DROP_AND_CREATE_ACTION);
+		}
+		try (Statement statement = connection.createStatement()) {
+			statement.executeUpdate("CREATE TABLE IF NOT EXISTS " + CHECKSUM_TABLE
+					+ " (CHECKSUM VARCHAR(64) NOT NULL, PRIMARY KEY (CHECKSUM))");
+			statement.executeUpdate("INSERT INTO " + CHECKSUM_TABLE + " (CHECKSUM) VALUES ('" + checksum + "')");
+			commit(connection);
+		} catch (SQLException e) {
+			if (!connection.getAutoCommit()) {
+				connection.rollback();
+			}
+			// Inserted meanwhile by another node starting at the same time
+			if (!isValidated(connection, checksum)) {
+				throw e;
+			}
+		}
+		session.getSessionLog().log(SessionLog.INFO, SessionLog.DDL, "Database schema validated, checksum " + checksum,
+				null, false);
+	}
+
+	// Of the tables and columns mapped by the descriptors and the table sequences
+	public static String checksum(Session session) {
+		try {
+			StringBuilder hex = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("SHA-256")
+					.digest(mapping(session).toString().getBytes(StandardCharsets.UTF_8))) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Table name -> column name -> definition, in a stable order
+	private static Map<String, Map<String, String>> mapping(Session session) {
+		Map<String, Map<String, String>> tables = new TreeMap<>();
+		for (ClassDescriptor descriptor : session.getDescriptors().values()) {
+			for (DatabaseField field : descriptor.getFields()) {
+				tables.computeIfAbsent(field.getTableName().toUpperCase(Locale.ROOT), table -> new TreeMap<>()).put(
+						field.getName().toUpperCase(Locale.ROOT),
+						field.getTypeName() + " " + field.getColumnDefinition() + " " + field.getLength() + " "
+								+ field.getPrecision() + " " + field.getScale() + " " + field.isNullable());
+			}
+		}
+		// A raw Map in DatasourceLogin
+		for (Object sequence : session.getLogin().getSequences().values()) {
+			if (sequence instanceof TableSequence) {
+				TableSequence tableSequence = (TableSequence) sequence;
+				Map<String, String> columns = tables.computeIfAbsent(
+						tableSequence.getTableName().toUpperCase(Locale.ROOT), table -> new TreeMap<>());
+				columns.put(tableSequence.getNameFieldName().toUpperCase(Locale.ROOT), "sequence name");
+				columns.put(tableSequence.getCounterFieldName().toUpperCase(Locale.ROOT), "sequence counter");
+			}
+		}
+		return tables;
+	}
+
+	private static boolean isValidated(Connection connection, String checksum) {
+		try (Statement statement = connection.createStatement();
+				ResultSet resultSet = statement
+						.executeQuery("SELECT CHECKSUM FROM " + CHECKSUM_TABLE + " WHERE CHECKSUM = '" + checksum + "'")) {
+			return resultSet.next();
+		} catch (SQLException e) {
+			// No checksum table yet
+			return false;
+		}
+	}
+
+	private static void forgetChecksums(Connection connection) {
+		try (Statement statement = connection.createStatement()) {
+			statement.executeUpdate("DELETE FROM " + CHECKSUM_TABLE);
+			commit(connection);
+		} catch (SQLException e) {
+			// No checksum table yet
+		}
+	}
+
+	// A connection of the PooledDataSource may not be in auto-commit mode
+	private static void commit(Connection connection) throws SQLException {
+		if (!connection.getAutoCommit()) {
+			connection.commit();
+		}
+	}
+
+	// The mapped tables and columns missing from the database
+	private static List<String> compareWithDatabase(Session session, Connection connection) throws SQLException {
+		Map<String, Set<String>> actual = databaseColumns(connection);
+		List<String> problems = new ArrayList<>();
+		for (Map.Entry<String, Map<String, String>> table : mapping(session).entrySet()) {
+			Set<String> columns = actual.get(table.getKey());
+			if (columns == null) {
+				problems.add("missing table " + table.getKey());
+				continue;
+			}
+			for (String column : table.getValue().keySet()) {
+				if (!columns.contains(column)) {
+					problems.add("missing column " + table.getKey() + "." + column);
+				}
+			}
+		}
+		return problems;
+	}
+
+	private static Map<String, Set<String>> databaseColumns(Connection connection) throws SQLException {
+		Map<String, Set<String>> columns = new HashMap<>();
+		try (ResultSet resultSet = connection.getMetaData().getColumns(connection.getCatalog(), null, "%", "%")) {
+			while (resultSet.next()) {
+				columns.computeIfAbsent(resultSet.getString("TABLE_NAME").toUpperCase(Locale.ROOT),
+						table -> new HashSet<>()).add(resultSet.getString("COLUMN_NAME").toUpperCase(Locale.ROOT));
+			}
+		}
+		return columns;
+	}
+}
@@ -0,0 +1,78 @@
+package persistence;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+
+/*
+ * Uses the rows of an entity table matching an SQL condition as a queue:
+ * each batch claims up to batchSize rows with SELECT ... FOR UPDATE SKIP
+ * LOCKED, hands them to the handler and commits, in one transaction. Any
+ * number of workers can process the same queue concurrently, each one gets
+ * different rows and none of them waits for the others. The handler is
+ * expected to change the rows so that they no longer match the condition,
+ * otherwise they are claimed again by the next batch. If the handler throws,
+ * the batch is rolled back and its rows are left for another worker.
+ * See RowLocks.claim() for the databases without SKIP LOCKED.
+ */
+public class WorkQueue<T> {
+	public static final int DEFAULT_BATCH_SIZE = 10;
+
+	private final EntityManagerFactory emf;
+	private final Class<T> entityClass;
+	private final String condition;
+	private final int batchSize;
+	private final RowLocks rowLocks;
+
+	public WorkQueue(EntityManagerFactory emf, Class<T> entityClass, String condition) {
+		this(emf, entityClass, condition, DEFAULT_BATCH_SIZE);
+	}
+
+	public WorkQueue(EntityManagerFactory emf, Class<T> entityClass, String condition, int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+		}
+		this.emf = emf;
+		this.entityClass = entityClass;
+		this.condition = condition;
+		this.batchSize = batchSize;
+		this.rowLocks = new RowLocks(emf);
+	}
+
+	// Returns the number of rows processed, 0 when none was available
+	public int processBatch(Consumer<T> handler) {
+		EntityManager em = emf.createEntityManager();
+		EntityTransaction tx = em.getTransaction();
+		try {
+			tx.begin();
+			List<T> claimed = rowLocks.claim(em, entityClass, condition, batchSize);
+			for (T entity : claimed) {
+				handler.accept(entity);
+			}
+			tx.commit();
+			return claimed.size();
+		} finally {
+			if (tx.isActive()) {
+				tx.rollback();
+			}
+			em.close();
+		}
+	}
+
+	/*
+	 * Processes batches until none is available; returns the number of rows
+	 * processed. The rows locked by other workers at that time are left to
+	 * them.
+	 */
+	public long drain(Consumer<T> handler) {
+		long processed = 0;
+		int count;
+		while ((count = processBatch(handler)) > 0) {
+			processed += count;
+		}
+		return processed;
+	}
+}
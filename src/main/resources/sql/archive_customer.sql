@@ -3,7 +3,9 @@ DELIMITER //
 CREATE PROCEDURE archive_customer(p_email VARCHAR(255))
 BEGIN
   INSERT INTO customer_archive SELECT * FROM customer WHERE email = p_email;
+  INSERT INTO address_archive SELECT a.* FROM address a JOIN customer c ON c.address_fk = a.id WHERE c.email = p_email;
   DELETE FROM customer WHERE email = p_email;
+  DELETE FROM address WHERE id IN (SELECT address_fk FROM customer_archive WHERE email = p_email);
   COMMIT;
 END //
 DELIMITER ;
\ No newline at end of file
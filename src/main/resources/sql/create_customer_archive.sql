@@ -5,6 +5,14 @@ CREATE TABLE `customer_archive` (
  `FIRSTNAME` varchar(255) DEFAULT NULL,
  `GENDER` varchar(255) DEFAULT NULL,
  `LASTNAME` varchar(255) DEFAULT NULL,
- `address_fk` bigint(20) NOT NULL,
+ `address_fk` bigint(20) DEFAULT NULL,
+ PRIMARY KEY (`ID`)
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
+CREATE TABLE `address_archive` (
+ `ID` bigint(20) NOT NULL,
+ `CITY` varchar(255) DEFAULT NULL,
+ `COUNTRY` varchar(255) DEFAULT NULL,
+ `STREET1` varchar(255) DEFAULT NULL,
+ `ZIPCODE` varchar(255) DEFAULT NULL,
  PRIMARY KEY (`ID`)
 ) ENGINE=InnoDB DEFAULT CHARSET=latin1;
\ No newline at end of file
@@ -0,0 +1,9 @@
+SET @seq_gen = COALESCE((SELECT SEQ_COUNT FROM SEQUENCE WHERE SEQ_NAME = 'SEQ_GEN'), 0);
+INSERT IGNORE INTO SEQUENCE (SEQ_NAME, SEQ_COUNT) VALUES ('ADDRESS_SEQ', 0);
+UPDATE SEQUENCE SET SEQ_COUNT = GREATEST(SEQ_COUNT, @seq_gen, (SELECT COALESCE(MAX(ID), 0) FROM ADDRESS)) WHERE SEQ_NAME = 'ADDRESS_SEQ';
+INSERT IGNORE INTO SEQUENCE (SEQ_NAME, SEQ_COUNT) VALUES ('CUSTOMER_SEQ', 0);
+UPDATE SEQUENCE SET SEQ_COUNT = GREATEST(SEQ_COUNT, @seq_gen, (SELECT COALESCE(MAX(ID), 0) FROM CUSTOMER)) WHERE SEQ_NAME = 'CUSTOMER_SEQ';
+INSERT IGNORE INTO SEQUENCE (SEQ_NAME, SEQ_COUNT) VALUES ('BOOK_SEQ', 0);
+UPDATE SEQUENCE SET SEQ_COUNT = GREATEST(SEQ_COUNT, @seq_gen, (SELECT COALESCE(MAX(ID), 0) FROM BOOK)) WHERE SEQ_NAME = 'BOOK_SEQ';
+INSERT IGNORE INTO SEQUENCE (SEQ_NAME, SEQ_COUNT) VALUES ('CD_SEQ', 0);
+UPDATE SEQUENCE SET SEQ_COUNT = GREATEST(SEQ_COUNT, @seq_gen, (SELECT COALESCE(MAX(ID), 0) FROM CD)) WHERE SEQ_NAME = 'CD_SEQ';
@@ -1 +1,2 @@
-TRUNCATE TABLE customer_archive;
\ No newline at end of file
+TRUNCATE TABLE customer_archive;
+TRUNCATE TABLE address_archive;
\ No newline at end of file
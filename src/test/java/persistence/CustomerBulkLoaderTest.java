@@ -0,0 +1,133 @@
+package persistence;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.eclipse.persistence.internal.sessions.UnitOfWorkImpl;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.logging.AbstractSessionLog;
+import org.eclipse.persistence.logging.SessionLog;
+import org.eclipse.persistence.logging.SessionLogEntry;
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+import org.eclipse.persistence.sessions.SessionEventListener;
+import org.eclipse.persistence.sessions.server.Server;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import model.Address;
+import model.Customer;
+
+/*
+ * Loads 250 customers, 100 at a time, on an in-memory H2 database, and looks
+ * at the JDBC batches and the commits of each chunk.
+ */
+public class CustomerBulkLoaderTest {
+	private static final int CUSTOMERS = 250;
+	private static final int CHUNK_SIZE = 100;
+
+	private static EntityManagerFactory emf;
+
+	// Records the JDBC batches EclipseLink logs: the statement, then one bind line per row
+	private static class BatchLog extends AbstractSessionLog {
+		private final List<String> batches = Collections.synchronizedList(new ArrayList<>());
+		private String statement;
+		private int rows;
+
+		@Override
+		public void log(SessionLogEntry entry) {
+			if (!SessionLog.SQL.equals(entry.getNameSpace())) {
+				return;
+			}
+			String message = entry.getMessage();
+			if (message.equals("begin_batch_statements")) {
+				statement = null;
+				rows = 0;
+			} else if (message.equals("end_batch_statements")) {
+				batches.add(statement + " x " + rows);
+			} else if (message.trim().startsWith("bind =>")) {
+				rows++;
+			} else {
+				// The table name, without the columns
+				statement = message.substring(0, message.indexOf(" ("));
+			}
+		}
+	}
+
+	@BeforeClass
+	public static void setUp() {
+		Map<String, Object> properties = new HashMap<>();
+		properties.put("javax.persistence.jdbc.driver", "org.h2.Driver");
+		properties.put("javax.persistence.jdbc.url", "jdbc:h2:mem:CustomerBulkLoaderTest;DB_CLOSE_DELAY=-1");
+		properties.put("javax.persistence.jdbc.user", "sa");
+		properties.put("javax.persistence.jdbc.password", "");
+		properties.put("javax.persistence.schema-generation.database.action", "drop-and-create");
+		properties.put("javax.persistence.schema-generation.scripts.action", "none");
+		properties.put("eclipselink.ddl-generation.table-creation-suffix", "");
+		properties.put("eclipselink.logging.level", "WARNING");
+		emf = Persistence.createEntityManagerFactory("chapter06PU", properties);
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		emf.close();
+	}
+
+	@Test
+	public void addressesAndCustomersGoInSeparateBatches() {
+		Server session = JpaHelper.getServerSession(emf);
+		SessionLog previous = session.getSessionLog();
+		BatchLog log = new BatchLog();
+		// The batch boundaries are logged at FINEST
+		log.setLevel(SessionLog.FINEST, SessionLog.SQL);
+		session.setSessionLog(log);
+		try {
+			load();
+		} finally {
+			session.setSessionLog(previous);
+		}
+		assertEquals(Arrays.asList("INSERT INTO ADDRESS x 100", "INSERT INTO CUSTOMER x 100",
+				"INSERT INTO ADDRESS x 100", "INSERT INTO CUSTOMER x 100", "INSERT INTO ADDRESS x 50",
+				"INSERT INTO CUSTOMER x 50"), log.batches);
+	}
+
+	@Test
+	public void eachCommitHoldsOnlyItsChunk() {
+		// The customers and their addresses
+		List<Integer> registered = Collections.synchronizedList(new ArrayList<>());
+		SessionEventListener listener = new SessionEventAdapter() {
+			@Override
+			public void preCommitUnitOfWork(SessionEvent event) {
+				registered.add(((UnitOfWorkImpl) event.getSession()).getCloneMapping().size());
+			}
+		};
+		Server session = JpaHelper.getServerSession(emf);
+		session.getEventManager().addListener(listener);
+		try {
+			load();
+		} finally {
+			session.getEventManager().removeListener(listener);
+		}
+		assertEquals(Arrays.asList(2 * CHUNK_SIZE, 2 * CHUNK_SIZE, 2 * (CUSTOMERS - 2 * CHUNK_SIZE)), registered);
+	}
+
+	private static void load() {
+		long loaded = new CustomerBulkLoader(emf, CHUNK_SIZE).load(IntStream.range(0, CUSTOMERS).mapToObj(i -> {
+			Customer customer = new Customer("Name" + i, "Surname" + i, "customer" + i + "@mail.com", i % 100, "M");
+			customer.setAddress(new Address("Street " + i, "City", "Zip", "UK"));
+			return customer;
+		}));
+		assertEquals(CUSTOMERS, loaded);
+	}
+}
@@ -0,0 +1,118 @@
+package persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import model.Book;
+
+/*
+ * Writes a detached Book back, against an in-memory H2 database, and looks at
+ * its version and that of its row.
+ */
+public class DetachedUpdatesTest {
+	private static EntityManagerFactory emf;
+	private static DetachedUpdates<Book> updates;
+
+	private Book book;
+
+	@BeforeClass
+	public static void setUp() {
+		Map<String, Object> properties = new HashMap<>();
+		properties.put("javax.persistence.jdbc.driver", "org.h2.Driver");
+		properties.put("javax.persistence.jdbc.url", "jdbc:h2:mem:DetachedUpdatesTest;DB_CLOSE_DELAY=-1");
+		properties.put("javax.persistence.jdbc.user", "sa");
+		properties.put("javax.persistence.jdbc.password", "");
+		properties.put("javax.persistence.schema-generation.database.action", "drop-and-create");
+		properties.put("javax.persistence.schema-generation.scripts.action", "none");
+		properties.put("eclipselink.ddl-generation.table-creation-suffix", "");
+		properties.put("eclipselink.logging.level", "WARNING");
+		emf = Persistence.createEntityManagerFactory("chapter06PU", properties);
+		updates = new DetachedUpdates<>(emf, Book.class);
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		emf.close();
+	}
+
+	@Before
+	public void persistBook() {
+		EntityManager em = emf.createEntityManager();
+		em.getTransaction().begin();
+		book = new Book("Title", 10f, "Description", "1-84023-742-2", 354, false);
+		em.persist(book);
+		em.getTransaction().commit();
+		em.close();
+	}
+
+	@Test
+	public void versionIsIncrementedOnceTheUpdateCommits() {
+		book.setPrice(12f);
+		updates.update(book);
+		assertEquals(2, versionOf(book));
+		assertEquals(2, versionOf(read()));
+		assertEquals(Float.valueOf(12f), read().getPrice());
+	}
+
+	@Test
+	public void versionIsLeftAsItWasWhenTheTransactionRollsBack() {
+		EntityManager em = emf.createEntityManager();
+		try {
+			em.getTransaction().begin();
+			book.setPrice(12f);
+			assertEquals(2, ((Number) updates.update(em, book)).intValue());
+			em.getTransaction().rollback();
+		} finally {
+			em.close();
+		}
+		assertEquals(1, versionOf(book));
+
+		// The entity still matches its row, so it can be written again
+		updates.update(book);
+		assertEquals(2, versionOf(book));
+		assertEquals(2, versionOf(read()));
+	}
+
+	@Test
+	public void mergedEntityHasNoVersionToSet() {
+		EntityManager em = emf.createEntityManager();
+		try {
+			em.getTransaction().begin();
+			em.find(Book.class, book.getId());
+			book.setPrice(12f);
+			assertNull(updates.update(em, book));
+			em.getTransaction().commit();
+		} finally {
+			em.close();
+		}
+		assertEquals(1, versionOf(book));
+		assertEquals(2, versionOf(read()));
+	}
+
+	private Book read() {
+		EntityManager em = emf.createEntityManager();
+		try {
+			return em.find(Book.class, book.getId());
+		} finally {
+			em.close();
+		}
+	}
+
+	private static int versionOf(Book book) {
+		return ((Number) JpaHelper.getServerSession(emf).getDescriptor(Book.class)
+				.getMappingForAttributeName("version").getAttributeValueFromObject(book)).intValue();
+	}
+}
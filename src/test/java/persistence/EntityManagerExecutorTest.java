@@ -0,0 +1,115 @@
+package persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/*
+ * Runs more tasks than maxConcurrency on each kind of executor, against an
+ * in-memory H2 database, and records how many of them ran at once. A cached
+ * thread pool stands in for the virtual threads before JDK 21: like them, it
+ * starts a thread per task and leaves the bound to the semaphore.
+ */
+public class EntityManagerExecutorTest {
+	private static final int MAX_CONCURRENCY = 3;
+	private static final int TASKS = 12;
+
+	private static EntityManagerFactory emf;
+
+	@BeforeClass
+	public static void setUp() {
+		Map<String, Object> properties = new HashMap<>();
+		properties.put("javax.persistence.jdbc.driver", "org.h2.Driver");
+		properties.put("javax.persistence.jdbc.url", "jdbc:h2:mem:EntityManagerExecutorTest;DB_CLOSE_DELAY=-1");
+		properties.put("javax.persistence.jdbc.user", "sa");
+		properties.put("javax.persistence.jdbc.password", "");
+		properties.put("javax.persistence.schema-generation.database.action", "drop-and-create");
+		properties.put("javax.persistence.schema-generation.scripts.action", "none");
+		properties.put("eclipselink.ddl-generation.table-creation-suffix", "");
+		properties.put("eclipselink.logging.level", "WARNING");
+		emf = Persistence.createEntityManagerFactory("chapter06PU", properties);
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		emf.close();
+	}
+
+	@Test
+	public void fixedPoolBoundsTheTasksWithItsThreads() {
+		EntityManagerExecutor executor = new EntityManagerExecutor(emf, MAX_CONCURRENCY, null);
+		assertFalse(executor.isVirtual());
+		assertEquals(MAX_CONCURRENCY, runAll(executor));
+	}
+
+	@Test
+	public void threadPerTaskIsBoundedByTheSemaphore() {
+		EntityManagerExecutor executor = new EntityManagerExecutor(emf, MAX_CONCURRENCY,
+				Executors.newCachedThreadPool());
+		assertTrue(executor.isVirtual());
+		assertEquals(MAX_CONCURRENCY, runAll(executor));
+	}
+
+	@Test
+	public void virtualThreadsAreBoundedByTheSemaphore() {
+		ExecutorService virtualThreads = EntityManagerExecutor.newVirtualThreadPerTaskExecutor();
+		// JDK 21 and later
+		assumeNotNull(virtualThreads);
+		EntityManagerExecutor executor = new EntityManagerExecutor(emf, MAX_CONCURRENCY, virtualThreads);
+		assertTrue(executor.isVirtual());
+		assertEquals(MAX_CONCURRENCY, runAll(executor));
+	}
+
+	@Test
+	public void defaultExecutorIsVirtualWhenTheJdkHasVirtualThreads() {
+		boolean virtualThreads = EntityManagerExecutor.newVirtualThreadPerTaskExecutor() != null;
+		try (EntityManagerExecutor executor = new EntityManagerExecutor(emf, MAX_CONCURRENCY)) {
+			assertEquals(virtualThreads, executor.isVirtual());
+		}
+	}
+
+	// The most tasks seen running at once
+	private static int runAll(EntityManagerExecutor executor) {
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger peak = new AtomicInteger();
+		List<CompletableFuture<Long>> futures = new ArrayList<>();
+		try {
+			for (int i = 0; i < TASKS; i++) {
+				futures.add(executor.submit(em -> {
+					peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+					try {
+						Thread.sleep(50);
+						return em.createQuery("SELECT COUNT(c) FROM CD c", Long.class).getSingleResult();
+					} catch (InterruptedException e) {
+						throw new IllegalStateException(e);
+					} finally {
+						running.decrementAndGet();
+					}
+				}));
+			}
+		} finally {
+			executor.close();
+		}
+		for (CompletableFuture<Long> future : futures) {
+			assertEquals(Long.valueOf(0), future.join());
+		}
+		return peak.get();
+	}
+}
@@ -0,0 +1,121 @@
+package persistence;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.TypedQuery;
+
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.logging.AbstractSessionLog;
+import org.eclipse.persistence.logging.SessionLog;
+import org.eclipse.persistence.logging.SessionLogEntry;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import model.Address;
+import model.Customer;
+
+/*
+ * Counts the SQL statements of listing the customers with their address,
+ * on an in-memory H2 database. Every listing starts with an empty shared
+ * cache, and reads the address of every customer.
+ */
+public class FetchProfileTest {
+	private static final int CUSTOMERS = 1000;
+
+	private static EntityManagerFactory emf;
+	private static StatementLog statements;
+
+	// Counts the statements EclipseLink logs in the sql category
+	private static class StatementLog extends AbstractSessionLog {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public void log(SessionLogEntry entry) {
+			if (SessionLog.SQL.equals(entry.getNameSpace())) {
+				count.incrementAndGet();
+			}
+		}
+	}
+
+	@BeforeClass
+	public static void setUp() {
+		Map<String, Object> properties = new HashMap<>();
+		properties.put("javax.persistence.jdbc.driver", "org.h2.Driver");
+		properties.put("javax.persistence.jdbc.url", "jdbc:h2:mem:FetchProfileTest;DB_CLOSE_DELAY=-1");
+		properties.put("javax.persistence.jdbc.user", "sa");
+		properties.put("javax.persistence.jdbc.password", "");
+		properties.put("javax.persistence.schema-generation.database.action", "drop-and-create");
+		properties.put("javax.persistence.schema-generation.scripts.action", "none");
+		properties.put("eclipselink.ddl-generation.table-creation-suffix", "");
+		properties.put("eclipselink.logging.level", "WARNING");
+		emf = Persistence.createEntityManagerFactory("chapter06PU", properties);
+		new CustomerBulkLoader(emf).load(IntStream.range(0, CUSTOMERS).mapToObj(i -> {
+			Customer customer = new Customer("Name" + i, "Surname" + i, "customer" + i + "@mail.com", i % 100, "M");
+			customer.setAddress(new Address("Street " + i, "City", "Zip", "UK"));
+			return customer;
+		}));
+
+		// Shared by the entity managers created from now on
+		statements = new StatementLog();
+		statements.setLevel(SessionLog.FINE, SessionLog.SQL);
+		JpaHelper.getServerSession(emf).setSessionLog(statements);
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		emf.close();
+	}
+
+	@Test
+	public void withoutProfileEveryAddressIsReadAlone() {
+		assertEquals(1 + CUSTOMERS, listCustomers(null));
+	}
+
+	@Test
+	public void joinReadsTheAddressesWithTheCustomers() {
+		assertEquals(1, listCustomers(FetchProfile.join("c.address")));
+	}
+
+	@Test
+	public void batchReadsTheAddressesBatchSizeAtATime() {
+		assertEquals((CUSTOMERS + 255) / 256 + 1, listCustomers(FetchProfile.batch("c.address")));
+		assertEquals(CUSTOMERS / 100 + 1, listCustomers(FetchProfile.batch(100, "c.address")));
+	}
+
+	@Test
+	public void subselectReadsAllTheAddressesAtOnce() {
+		assertEquals(2, listCustomers(FetchProfile.subselect("c.address")));
+	}
+
+	// Returns the number of statements
+	private static int listCustomers(FetchProfile profile) {
+		emf.getCache().evictAll();
+		EntityManager em = emf.createEntityManager();
+		try {
+			// Not Customer.FIND_ALL, whose results are cached
+			TypedQuery<Customer> query = em.createQuery("SELECT c FROM Customer c", Customer.class);
+			if (profile != null) {
+				profile.applyTo(query);
+			}
+			statements.count.set(0);
+			List<Customer> customers = query.getResultList();
+			assertEquals(CUSTOMERS, customers.size());
+			for (Customer customer : customers) {
+				assertEquals("UK", customer.getAddress().getCountry());
+			}
+			return statements.count.get();
+		} finally {
+			em.close();
+		}
+	}
+}
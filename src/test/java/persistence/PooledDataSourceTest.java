@@ -0,0 +1,209 @@
+package persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+/*
+ * Against a private in-memory H2 database per test.
+ */
+public class PooledDataSourceTest {
+	private static final String SELECT = "SELECT X FROM SYSTEM_RANGE(1, 10)";
+
+	@Rule
+	public TestName testName = new TestName();
+
+	private String url;
+	private PooledDataSource pool;
+
+	@Before
+	public void setUp() {
+		url = "jdbc:h2:mem:" + testName.getMethodName() + ";DB_CLOSE_DELAY=-1";
+		pool = new PooledDataSource(url, "sa", "");
+	}
+
+	@After
+	public void tearDown() {
+		pool.close();
+	}
+
+	@Test
+	public void statementIsReusedWithoutItsSettings() throws SQLException {
+		int defaultFetchSize;
+		try (Connection connection = DriverManager.getConnection(url, "sa", "");
+				PreparedStatement statement = connection.prepareStatement(SELECT)) {
+			defaultFetchSize = statement.getFetchSize();
+		}
+
+		try (Connection connection = pool.getConnection()) {
+			try (PreparedStatement statement = connection.prepareStatement(SELECT)) {
+				statement.setFetchSize(3);
+				statement.setQueryTimeout(5);
+				statement.setMaxRows(2);
+				assertEquals(2, count(statement));
+			}
+			try (PreparedStatement statement = connection.prepareStatement(SELECT)) {
+				assertEquals(1, pool.getStatementCacheHits());
+				assertEquals(defaultFetchSize, statement.getFetchSize());
+				assertEquals(0, statement.getQueryTimeout());
+				assertEquals(0, statement.getMaxRows());
+				assertEquals(10, count(statement));
+			}
+		}
+	}
+
+	@Test
+	public void statementLeftOpenIsResetWhenTheConnectionIsReturned() throws SQLException {
+		pool.setMaxSize(1);
+		PreparedStatement leftOpen;
+		try (Connection connection = pool.getConnection()) {
+			leftOpen = connection.prepareStatement(SELECT);
+			leftOpen.setMaxRows(2);
+		}
+		assertTrue(leftOpen.isClosed());
+
+		try (Connection connection = pool.getConnection();
+				PreparedStatement statement = connection.prepareStatement(SELECT)) {
+			assertEquals(1, pool.getStatementCacheHits());
+			// Closing the stale handle leaves the statement handed out again alone
+			leftOpen.close();
+			assertEquals(0, statement.getMaxRows());
+			assertEquals(10, count(statement));
+		}
+	}
+
+	@Test
+	public void connectionGetsItsSettingsBack() throws SQLException {
+		pool.setMaxSize(1);
+		int isolation;
+		try (Connection connection = pool.getConnection()) {
+			isolation = connection.getTransactionIsolation();
+			connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+			connection.setReadOnly(true);
+			connection.setAutoCommit(false);
+		}
+		// The same physical connection, as there is only one
+		try (Connection connection = pool.getConnection()) {
+			assertEquals(isolation, connection.getTransactionIsolation());
+			assertFalse(connection.isReadOnly());
+			assertTrue(connection.getAutoCommit());
+		}
+	}
+
+	@Test
+	public void uncommittedWorkIsRolledBack() throws SQLException {
+		pool.setMaxSize(1);
+		try (Connection connection = pool.getConnection(); Statement statement = connection.createStatement()) {
+			statement.executeUpdate("CREATE TABLE T (ID INT)");
+			connection.setAutoCommit(false);
+			statement.executeUpdate("INSERT INTO T VALUES (1)");
+		}
+		try (Connection connection = pool.getConnection();
+				PreparedStatement statement = connection.prepareStatement("SELECT ID FROM T")) {
+			assertEquals(0, count(statement));
+		}
+	}
+
+	@Test
+	public void closedHandleCannotBeUsed() throws SQLException {
+		pool.setMaxSize(1);
+		Connection closed = pool.getConnection();
+		closed.close();
+		try (Connection connection = pool.getConnection()) {
+			assertTrue(closed.isClosed());
+			assertFalse(connection.isClosed());
+			closed.createStatement();
+			fail("The closed handle was used");
+		} catch (SQLException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void acquireTimesOut() throws SQLException {
+		pool.setMaxSize(1);
+		pool.setAcquireTimeoutMillis(100);
+		Connection held = pool.getConnection();
+		try {
+			long start = System.nanoTime();
+			try {
+				pool.getConnection();
+				fail("A second connection was handed out");
+			} catch (SQLTransientConnectionException e) {
+				assertTrue((System.nanoTime() - start) / 1_000_000 >= 100);
+			}
+			assertEquals(1, pool.getTimeouts());
+			assertEquals(1, pool.getWaits());
+		} finally {
+			held.close();
+		}
+		// The permit of the failed attempt was not lost
+		Connection next = pool.getConnection();
+		try {
+			assertEquals(1, pool.getActiveConnections());
+		} finally {
+			next.close();
+		}
+	}
+
+	@Test
+	public void leakIsReportedOnce() throws Exception {
+		pool.setLeakThresholdMillis(50);
+		Connection leaked = pool.getConnection();
+		try {
+			// Checked every second by the housekeeping
+			long deadline = System.currentTimeMillis() + 5_000;
+			while (pool.getLeaks() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			assertEquals(1, pool.getLeaks());
+			Thread.sleep(1_500);
+			assertEquals(1, pool.getLeaks());
+		} finally {
+			leaked.close();
+		}
+		Connection next = pool.getConnection();
+		try {
+			assertEquals(1, pool.getLeaks());
+		} finally {
+			next.close();
+		}
+	}
+
+	@Test
+	public void noLeakWithinThreshold() throws Exception {
+		pool.setLeakThresholdMillis(60_000);
+		Connection held = pool.getConnection();
+		try {
+			Thread.sleep(1_500);
+		} finally {
+			held.close();
+		}
+		assertEquals(0, pool.getLeaks());
+	}
+
+	private static int count(PreparedStatement statement) throws SQLException {
+		int rows = 0;
+		try (ResultSet resultSet = statement.executeQuery()) {
+			while (resultSet.next()) {
+				rows++;
+			}
+		}
+		return rows;
+	}
+}
@@ -0,0 +1,221 @@
+package persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.LockModeType;
+import javax.persistence.LockTimeoutException;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+
+import org.eclipse.persistence.exceptions.DatabaseException;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.platform.database.H2Platform;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import model.CD;
+
+/*
+ * The statements RowLocks sends to MySQL, recorded by an EntityManager that
+ * runs none of them, and the SKIP LOCKED emulation of the other databases,
+ * against an in-memory H2 database.
+ */
+public class RowLocksTest {
+	private static EntityManagerFactory emf;
+	private static List<Long> ids;
+
+	// Reports the lock timeouts of H2 as such, see RowLocks
+	public static class LockTimeoutH2Platform extends H2Platform {
+		private static final long serialVersionUID = 1L;
+		// org.h2.api.ErrorCode.LOCK_TIMEOUT_1
+		private static final int LOCK_TIMEOUT = 50200;
+
+		@Override
+		public boolean isLockTimeoutException(DatabaseException e) {
+			return e.getDatabaseErrorCode() == LOCK_TIMEOUT;
+		}
+	}
+
+	/*
+	 * Records the native statements as they are executed, and answers them
+	 * with no rows, no row changed, and a lock wait timeout of 50 s; failure,
+	 * if set, is thrown by the reads of the rows.
+	 */
+	private static class MySqlStatements implements InvocationHandler {
+		private final List<String> statements = new ArrayList<>();
+		private RuntimeException failure;
+
+		EntityManager entityManager() {
+			return proxy(EntityManager.class, this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			if (!method.getName().equals("createNativeQuery")) {
+				throw new UnsupportedOperationException(method.getName());
+			}
+			String statement = (String) args[0];
+			return proxy(Query.class, (query, queryMethod, queryArgs) -> {
+				switch (queryMethod.getName()) {
+				case "getResultList":
+					statements.add(statement);
+					if (failure != null) {
+						throw failure;
+					}
+					return Collections.emptyList();
+				case "getSingleResult":
+					statements.add(statement);
+					return 50L;
+				case "executeUpdate":
+					statements.add(statement);
+					return 0;
+				default:
+					// The setters return the query itself
+					return query;
+				}
+			});
+		}
+
+		private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+			return type.cast(Proxy.newProxyInstance(RowLocksTest.class.getClassLoader(), new Class<?>[] { type }, handler));
+		}
+	}
+
+	@BeforeClass
+	public static void setUp() {
+		Map<String, Object> properties = new HashMap<>();
+		properties.put("javax.persistence.jdbc.driver", "org.h2.Driver");
+		// Gives up a lock wait after 100 ms, in place of NOWAIT
+		properties.put("javax.persistence.jdbc.url", "jdbc:h2:mem:RowLocksTest;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=100");
+		properties.put("javax.persistence.jdbc.user", "sa");
+		properties.put("javax.persistence.jdbc.password", "");
+		properties.put("javax.persistence.schema-generation.database.action", "drop-and-create");
+		properties.put("javax.persistence.schema-generation.scripts.action", "none");
+		properties.put("eclipselink.ddl-generation.table-creation-suffix", "");
+		properties.put("eclipselink.target-database", LockTimeoutH2Platform.class.getName());
+		properties.put("eclipselink.logging.level", "OFF");
+		emf = Persistence.createEntityManagerFactory("chapter06PU", properties);
+
+		EntityManager em = emf.createEntityManager();
+		em.getTransaction().begin();
+		List<CD> cds = new ArrayList<>();
+		for (int i = 0; i < 6; i++) {
+			CD cd = new CD("Title" + i, 10f + i, "Description");
+			em.persist(cd);
+			cds.add(cd);
+		}
+		em.getTransaction().commit();
+		em.close();
+		ids = cds.stream().map(CD::getId).collect(Collectors.toList());
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		emf.close();
+	}
+
+	@Test
+	public void findLocksWithTheClauseOfEachMode() {
+		assertEquals("SELECT * FROM CD WHERE ID = ? FOR UPDATE",
+				findOnMySql(LockModeType.PESSIMISTIC_WRITE, LockOptions.block()));
+		assertEquals("SELECT * FROM CD WHERE ID = ? FOR UPDATE NOWAIT",
+				findOnMySql(LockModeType.PESSIMISTIC_WRITE, LockOptions.noWait()));
+		assertEquals("SELECT * FROM CD WHERE ID = ? FOR UPDATE SKIP LOCKED",
+				findOnMySql(LockModeType.PESSIMISTIC_WRITE, LockOptions.skipLocked()));
+		assertEquals("SELECT * FROM CD WHERE ID = ? FOR SHARE",
+				findOnMySql(LockModeType.PESSIMISTIC_READ, LockOptions.block()));
+		assertEquals("SELECT * FROM CD WHERE ID = ? FOR SHARE NOWAIT",
+				findOnMySql(LockModeType.PESSIMISTIC_READ, LockOptions.noWait()));
+		assertEquals("SELECT * FROM CD WHERE ID = ? FOR SHARE SKIP LOCKED",
+				findOnMySql(LockModeType.PESSIMISTIC_READ, LockOptions.skipLocked()));
+	}
+
+	@Test
+	public void claimSkipsTheLockedRows() {
+		MySqlStatements mySql = new MySqlStatements();
+		RowLocks rowLocks = new RowLocks(JpaHelper.getServerSession(emf), true);
+		rowLocks.claim(mySql.entityManager(), CD.class, "PRICE < 20", 5);
+		rowLocks.claim(mySql.entityManager(), CD.class, null, 5);
+		assertEquals(Arrays.asList("SELECT * FROM CD WHERE PRICE < 20 ORDER BY ID LIMIT ? FOR UPDATE SKIP LOCKED",
+				"SELECT * FROM CD ORDER BY ID LIMIT ? FOR UPDATE SKIP LOCKED"), mySql.statements);
+	}
+
+	@Test
+	public void timeoutSetsTheLockWaitTimeoutAndRestoresIt() {
+		MySqlStatements mySql = new MySqlStatements();
+		new RowLocks(JpaHelper.getServerSession(emf), true).find(mySql.entityManager(), CD.class, 1L,
+				LockModeType.PESSIMISTIC_WRITE, LockOptions.timeout(1500));
+		// Rounded up to whole seconds
+		assertEquals(Arrays.asList("SELECT @@SESSION.innodb_lock_wait_timeout",
+				"SET SESSION innodb_lock_wait_timeout = 2", "SELECT * FROM CD WHERE ID = ? FOR UPDATE",
+				"SET SESSION innodb_lock_wait_timeout = 50"), mySql.statements);
+	}
+
+	@Test
+	public void timeoutIsRestoredWhenTheLockFails() {
+		MySqlStatements mySql = new MySqlStatements();
+		mySql.failure = new PersistenceException(new SQLException("Lock wait timeout exceeded", "HY000", 1205));
+		try {
+			new RowLocks(JpaHelper.getServerSession(emf), true).find(mySql.entityManager(), CD.class, 1L,
+					LockModeType.PESSIMISTIC_READ, LockOptions.timeout(3000));
+			fail("The lock should have timed out");
+		} catch (LockTimeoutException e) {
+			assertEquals(Arrays.asList("SELECT @@SESSION.innodb_lock_wait_timeout",
+					"SET SESSION innodb_lock_wait_timeout = 3", "SELECT * FROM CD WHERE ID = ? FOR SHARE",
+					"SET SESSION innodb_lock_wait_timeout = 50"), mySql.statements);
+		}
+	}
+
+	@Test
+	public void withoutSkipLockedTheLockedRowsAreLeftOutOneByOne() {
+		RowLocks rowLocks = new RowLocks(emf);
+		EntityManager holder = emf.createEntityManager();
+		EntityManager worker = emf.createEntityManager();
+		try {
+			holder.getTransaction().begin();
+			holder.find(CD.class, ids.get(0), LockModeType.PESSIMISTIC_WRITE);
+			holder.find(CD.class, ids.get(2), LockModeType.PESSIMISTIC_WRITE);
+
+			worker.getTransaction().begin();
+			// The fifth CD, at 14, no longer matches
+			List<CD> claimed = rowLocks.claim(worker, CD.class, "PRICE < 14", 3);
+			assertEquals(Arrays.asList(ids.get(1), ids.get(3)),
+					claimed.stream().map(CD::getId).collect(Collectors.toList()));
+			assertNull(rowLocks.find(worker, CD.class, ids.get(0), LockModeType.PESSIMISTIC_WRITE,
+					LockOptions.skipLocked()));
+			assertFalse(worker.getTransaction().getRollbackOnly());
+		} finally {
+			worker.getTransaction().rollback();
+			holder.getTransaction().rollback();
+			worker.close();
+			holder.close();
+		}
+	}
+
+	private static String findOnMySql(LockModeType lockMode, LockOptions options) {
+		MySqlStatements mySql = new MySqlStatements();
+		new RowLocks(JpaHelper.getServerSession(emf), true).find(mySql.entityManager(), CD.class, 1L, lockMode,
+				options);
+		assertEquals(1, mySql.statements.size());
+		return mySql.statements.get(0);
+	}
+}